@@ -0,0 +1,122 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package modbuspal.link;
+
+import java.util.concurrent.TimeUnit;
+import modbuspal.main.ModbusConst;
+import modbuspal.main.ModbusPalProject;
+import modbuspal.slave.ModbusSlave;
+import modbuspal.slave.ModbusSlaveAddress;
+import modbuspal.toolkit.ModbusTools;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures ModbusSlaveProcessor.processPDU() end to end, as called by the
+ * links: lookup of the slave in the project, dispatch to the PDU processor
+ * of the function code, and notification of the reply. The slave has no
+ * reply delay, so the reply is notified immediately.
+ * @author nnovic
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations=5, time=1)
+@Measurement(iterations=5, time=1)
+@Fork(value=1, jvmArgsAppend="-Djava.awt.headless=true")
+public class ModbusSlaveProcessorBenchmark
+implements ModbusConst
+{
+    /** number of holding registers defined in the slave */
+    @Param({"128", "4096", "65536"})
+    public int registerCount;
+
+    /** value of the "learn mode" of the project */
+    @Param({"false", "true"})
+    public boolean learnMode;
+
+    private final ModbusSlaveAddress slaveID = new ModbusSlaveAddress(1);
+    private final byte buffer[] = new byte[256];
+    private ModbusSlaveProcessor processor;
+    private int readQuantity;
+    private int writeQuantity;
+    private int address;
+    private int replyLength;
+
+    private final ModbusSlaveProcessor.ReplyHandler handler = new ModbusSlaveProcessor.ReplyHandler()
+    {
+        @Override
+        public void replyReady(int pduLength)
+        {
+            replyLength = pduLength;
+        }
+    };
+
+    @Setup(Level.Iteration)
+    public void setup()
+    {
+        ModbusPalProject project = new ModbusPalProject();
+        project.setLearnModeEnabled(learnMode);
+
+        ModbusSlave slave = new ModbusSlave(slaveID);
+        if( learnMode == false )
+        {
+            slave.getHoldingRegisters().create(0, registerCount);
+        }
+        project.addModbusSlave(slave);
+
+        processor = new ModbusSlaveProcessor(project) {};
+        readQuantity = Math.min(125, registerCount);
+        writeQuantity = Math.min(123, registerCount);
+        address = 0;
+    }
+
+    /**
+     * Returns the starting address of the next window of registers.
+     */
+    private int nextAddress(int quantity)
+    {
+        int start = address;
+        address += quantity;
+        if( address+quantity > registerCount )
+        {
+            address = 0;
+        }
+        return start;
+    }
+
+    @Benchmark
+    public int readHoldingRegisters()
+    {
+        buffer[0] = FC_READ_HOLDING_REGISTERS;
+        ModbusTools.setUint16(buffer, 1, nextAddress(readQuantity) );
+        ModbusTools.setUint16(buffer, 3, readQuantity);
+        processor.processPDU(slaveID, buffer, 0, 5, handler);
+        return replyLength;
+    }
+
+    @Benchmark
+    public int writeMultipleRegisters()
+    {
+        // the values are left over from the previous requests:
+        buffer[0] = FC_WRITE_MULTIPLE_REGISTERS;
+        ModbusTools.setUint16(buffer, 1, nextAddress(writeQuantity) );
+        ModbusTools.setUint16(buffer, 3, writeQuantity);
+        ModbusTools.setUint8(buffer, 5, 2*writeQuantity);
+        processor.processPDU(slaveID, buffer, 0, 6+2*writeQuantity, handler);
+        return replyLength;
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package modbuspal.main;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the operations of ModbusValuesMap that are used when the
+ * registers of a slave are accessed, either by a request or by the
+ * table that displays them.
+ * <p>
+ * When learn mode is disabled, all the registers are added to the map
+ * before each iteration. When it is enabled, the map starts empty and each
+ * register is added the first time it is accessed, like
+ * ModbusRegisters.exist() does when the values must be created.
+ * @author nnovic
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations=5, time=1)
+@Measurement(iterations=5, time=1)
+@Fork(value=1, jvmArgsAppend="-Djava.awt.headless=true")
+public class ModbusValuesMapBenchmark
+{
+    /** number of registers defined in the map */
+    @Param({"128", "4096", "65536"})
+    public int registerCount;
+
+    /** value of the "learn mode" of the project */
+    @Param({"false", "true"})
+    public boolean learnMode;
+
+    private ModbusValuesMap map;
+    private int quantity;
+    private int address;
+    private int random;
+
+    @Setup(Level.Iteration)
+    public void setup()
+    {
+        map = new ModbusValuesMap();
+        if( learnMode == false )
+        {
+            map.addIndexes(0, registerCount);
+        }
+        quantity = Math.min(125, registerCount);
+        address = 0;
+        random = 0x2545F491;
+    }
+
+    /**
+     * Returns the starting address of the next window of registers.
+     */
+    private int nextAddress()
+    {
+        int start = address;
+        address += quantity;
+        if( address+quantity > registerCount )
+        {
+            address = 0;
+        }
+        return start;
+    }
+
+    /**
+     * Returns a pseudo-random index between 0 and registerCount.
+     */
+    private int nextRandom()
+    {
+        random ^= random << 13;
+        random ^= random >>> 17;
+        random ^= random << 5;
+        return (random & 0x7FFFFFFF) % registerCount;
+    }
+
+    private void learn(int index)
+    {
+        if( (learnMode==true) && (map.indexExists(index)==false) )
+        {
+            map.addIndexes(index, 1);
+        }
+    }
+
+    @Benchmark
+    public int getByIndex()
+    {
+        int start = nextAddress();
+        int sum = 0;
+        for( int i=0; i<quantity; i++ )
+        {
+            learn(start+i);
+            sum += map.getByIndex(start+i);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public void putByIndex()
+    {
+        int start = nextAddress();
+        for( int i=0; i<quantity; i++ )
+        {
+            learn(start+i);
+            map.putByIndex(start+i, i);
+        }
+    }
+
+    @Benchmark
+    public int getOrderOf()
+    {
+        int index = nextRandom();
+        learn(index);
+        return map.getOrderOf(index);
+    }
+
+    @Benchmark
+    public int getIndexOf()
+    {
+        int index = nextRandom();
+        learn(index);
+        return map.getIndexOf( map.getCount()/2 );
+    }
+
+    @Benchmark
+    public int deleteAndAdd()
+    {
+        int index = nextRandom();
+        learn(index);
+        map.delete(index);
+        map.addIndex(index);
+        return map.getCount();
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package modbuspal.slave;
+
+import java.util.concurrent.TimeUnit;
+import modbuspal.main.ModbusConst;
+import modbuspal.toolkit.ModbusTools;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures ModbusCoils.processPDU() for the function codes that access
+ * the coils. Each request accesses the next window of coils, so that the
+ * whole range is swept.
+ * <p>
+ * When learn mode is disabled, all the coils are created before each
+ * iteration. When it is enabled, the slave starts without coils and
+ * they are created by the requests themselves.
+ * @author nnovic
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations=5, time=1)
+@Measurement(iterations=5, time=1)
+@Fork(value=1, jvmArgsAppend="-Djava.awt.headless=true")
+public class ModbusCoilsBenchmark
+implements ModbusConst
+{
+    /** number of coils defined in the slave */
+    @Param({"128", "4096", "65536"})
+    public int registerCount;
+
+    /** value of the "learn mode" of the project */
+    @Param({"false", "true"})
+    public boolean learnMode;
+
+    private final ModbusSlaveAddress slaveID = new ModbusSlaveAddress(1);
+    private final byte buffer[] = new byte[256];
+    private ModbusCoils coils;
+    private int readQuantity;
+    private int writeQuantity;
+    private int address;
+    private int value;
+
+    @Setup(Level.Iteration)
+    public void setup()
+    {
+        coils = new ModbusCoils();
+        if( learnMode == false )
+        {
+            coils.create(0, registerCount);
+        }
+        readQuantity = Math.min(2000, registerCount);
+        writeQuantity = Math.min(1968, registerCount);
+        address = 0;
+        value = 0xFF00;
+    }
+
+    /**
+     * Returns the starting address of the next window of coils.
+     */
+    private int nextAddress(int quantity)
+    {
+        int start = address;
+        address += quantity;
+        if( address+quantity > registerCount )
+        {
+            address = 0;
+        }
+        return start;
+    }
+
+    @Benchmark
+    public int readCoils()
+    {
+        buffer[0] = FC_READ_COILS;
+        ModbusTools.setUint16(buffer, 1, nextAddress(readQuantity) );
+        ModbusTools.setUint16(buffer, 3, readQuantity);
+        return coils.processPDU(FC_READ_COILS, slaveID, buffer, 0, learnMode);
+    }
+
+    @Benchmark
+    public int writeSingleCoil()
+    {
+        value ^= 0xFF00;
+        buffer[0] = FC_WRITE_SINGLE_COIL;
+        ModbusTools.setUint16(buffer, 1, nextAddress(1) );
+        ModbusTools.setUint16(buffer, 3, value);
+        return coils.processPDU(FC_WRITE_SINGLE_COIL, slaveID, buffer, 0, learnMode);
+    }
+
+    @Benchmark
+    public int writeMultipleCoils()
+    {
+        // the values are left over from the previous requests:
+        buffer[0] = FC_WRITE_MULTIPLE_COILS;
+        ModbusTools.setUint16(buffer, 1, nextAddress(writeQuantity) );
+        ModbusTools.setUint16(buffer, 3, writeQuantity);
+        ModbusTools.setUint8(buffer, 5, (writeQuantity+7)/8);
+        return coils.processPDU(FC_WRITE_MULTIPLE_COILS, slaveID, buffer, 0, learnMode);
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package modbuspal.slave;
+
+import java.util.concurrent.TimeUnit;
+import modbuspal.main.ModbusConst;
+import modbuspal.toolkit.ModbusTools;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures ModbusRegisters.processPDU() for the function codes that access
+ * the holding registers. Each request accesses the next window of
+ * registers, so that the whole range is swept.
+ * <p>
+ * When learn mode is disabled, all the registers are created before each
+ * iteration. When it is enabled, the slave starts without registers and
+ * they are created by the requests themselves.
+ * @author nnovic
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations=5, time=1)
+@Measurement(iterations=5, time=1)
+@Fork(value=1, jvmArgsAppend="-Djava.awt.headless=true")
+public class ModbusRegistersBenchmark
+implements ModbusConst
+{
+    /** number of registers defined in the slave */
+    @Param({"128", "4096", "65536"})
+    public int registerCount;
+
+    /** value of the "learn mode" of the project */
+    @Param({"false", "true"})
+    public boolean learnMode;
+
+    private final ModbusSlaveAddress slaveID = new ModbusSlaveAddress(1);
+    private final byte buffer[] = new byte[256];
+    private ModbusRegisters registers;
+    private int readQuantity;
+    private int writeQuantity;
+    private int readWriteQuantity;
+    private int address;
+
+    @Setup(Level.Iteration)
+    public void setup()
+    {
+        registers = new ModbusRegisters();
+        if( learnMode == false )
+        {
+            registers.create(0, registerCount);
+        }
+        readQuantity = Math.min(125, registerCount);
+        writeQuantity = Math.min(123, registerCount);
+        readWriteQuantity = Math.min(118, registerCount);
+        address = 0;
+    }
+
+    /**
+     * Returns the starting address of the next window of registers.
+     */
+    private int nextAddress(int quantity)
+    {
+        int start = address;
+        address += quantity;
+        if( address+quantity > registerCount )
+        {
+            address = 0;
+        }
+        return start;
+    }
+
+    @Benchmark
+    public int readHoldingRegisters()
+    {
+        buffer[0] = FC_READ_HOLDING_REGISTERS;
+        ModbusTools.setUint16(buffer, 1, nextAddress(readQuantity) );
+        ModbusTools.setUint16(buffer, 3, readQuantity);
+        return registers.processPDU(FC_READ_HOLDING_REGISTERS, slaveID, buffer, 0, learnMode);
+    }
+
+    @Benchmark
+    public int writeSingleRegister()
+    {
+        int start = nextAddress(1);
+        buffer[0] = FC_WRITE_SINGLE_REGISTER;
+        ModbusTools.setUint16(buffer, 1, start);
+        ModbusTools.setUint16(buffer, 3, start & 0xFFFF);
+        return registers.processPDU(FC_WRITE_SINGLE_REGISTER, slaveID, buffer, 0, learnMode);
+    }
+
+    @Benchmark
+    public int writeMultipleRegisters()
+    {
+        // the values are left over from the previous requests:
+        buffer[0] = FC_WRITE_MULTIPLE_REGISTERS;
+        ModbusTools.setUint16(buffer, 1, nextAddress(writeQuantity) );
+        ModbusTools.setUint16(buffer, 3, writeQuantity);
+        ModbusTools.setUint8(buffer, 5, 2*writeQuantity);
+        return registers.processPDU(FC_WRITE_MULTIPLE_REGISTERS, slaveID, buffer, 0, learnMode);
+    }
+
+    @Benchmark
+    public int readWriteMultipleRegisters()
+    {
+        int start = nextAddress(readWriteQuantity);
+        buffer[0] = FC_READ_WRITE_MULTIPLE_REGISTERS;
+        ModbusTools.setUint16(buffer, 1, start);
+        ModbusTools.setUint16(buffer, 3, readWriteQuantity);
+        ModbusTools.setUint16(buffer, 5, start);
+        ModbusTools.setUint16(buffer, 7, readWriteQuantity);
+        ModbusTools.setUint8(buffer, 9, 2*readWriteQuantity);
+        return registers.processPDU(FC_READ_WRITE_MULTIPLE_REGISTERS, slaveID, buffer, 0, learnMode);
+    }
+}
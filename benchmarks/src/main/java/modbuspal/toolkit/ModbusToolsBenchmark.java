@@ -0,0 +1,91 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package modbuspal.toolkit;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures ModbusTools.computeCRC16() on the RTU frame of a "write
+ * multiple registers" request, and compares it with the bit by bit
+ * algorithm that ModbusSerialLink used before. The learn mode has no effect
+ * on the CRC, so only the register count is a parameter.
+ * @author nnovic
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations=5, time=1)
+@Measurement(iterations=5, time=1)
+@Fork(value=1, jvmArgsAppend="-Djava.awt.headless=true")
+public class ModbusToolsBenchmark
+{
+    /** number of registers written by the request */
+    @Param({"1", "16", "123"})
+    public int registerCount;
+
+    private byte frame[];
+
+    @Setup
+    public void setup()
+    {
+        // slave address + PDU, without the CRC:
+        frame = new byte[1 + 6 + 2*registerCount];
+        new Random(0).nextBytes(frame);
+
+        if( computeCRC16Bitwise(frame, 0, frame.length) != ModbusTools.computeCRC16(frame, 0, frame.length) )
+        {
+            throw new IllegalStateException("CRC mismatch");
+        }
+    }
+
+    @Benchmark
+    public int computeCRC16()
+    {
+        return ModbusTools.computeCRC16(frame, 0, frame.length);
+    }
+
+    @Benchmark
+    public int computeCRC16Bitwise()
+    {
+        return computeCRC16Bitwise(frame, 0, frame.length);
+    }
+
+    /**
+     * the reference algorithm, from the MODBUS over serial line
+     * specification.
+     */
+    private static int computeCRC16Bitwise(byte[] buffer, int offset, int length)
+    {
+        int CRC = 0xFFFF;
+        for( int i=0; i<length; i++ )
+        {
+            int b = buffer[offset+i] & 0xFF;
+            CRC = (CRC ^ b) & 0xFFFF;
+            for( int j=0; j<8; j++ )
+            {
+                int LSB = CRC & 1;
+                CRC = (CRC >> 1) ;
+                if( LSB==1 )
+                {
+                    CRC = (CRC ^ 0xA001) & 0xFFFF;
+                }
+            }
+        }
+        return CRC;
+    }
+}
@@ -29,17 +29,62 @@ implements Runnable
     public final static String DEFAULT_NAME = "no name"; 
     private ArrayList<Generator> generators = new ArrayList<Generator>();
     private double stepDelay = 1.0;
-    private Thread thread = null;
+    private volatile boolean running = false;
     private boolean loop = true;
     private String uniqueName="";
-    private boolean suspended = false;
-    private boolean quit = false;
+    private volatile boolean suspended = false;
+    private volatile boolean quit = false;
     private ArrayList<AutomationEditionListener> automationEditionListeners = new ArrayList<AutomationEditionListener>();
     private InstanceCounter<AutomationExecutionListener> automationExecutionListeners = new InstanceCounter<AutomationExecutionListener>();
     private ArrayList<GeneratorListener> generatorListeners = new ArrayList<GeneratorListener>();
-    private double currentValue = 0.0;
+    private volatile AutomationSample currentSample = new AutomationSample(0.0, 0.0);
     private double initialValue = 0.0;
 
+    // state of the execution, between two steps:
+    private Generator genList[] = null;
+    private int currentIndex = 0;
+    private Generator currentGen = null;
+    private double currentDuration = 0.0;
+    private boolean reloaded = false;
+    private double currentTime = 0.0;
+    private double startTime = 0.0;
+    private long nextDeadline = 0;
+    private StepTask pending = null;
+    private boolean paused = false;
+    private int generation = 0;
+
+    // values of the next steps, computed in advance by getValues():
+    private double windowTimes[] = null;
+    private double windowValues[] = null;
+    private int windowIndex = 0;
+    private int windowCount = 0;
+    private int windowRevision = 0;
+    private double windowStepDelay = 0.0;
+    private double tailTimes[] = null;
+    private double tailValues[] = null;
+
+    /**
+     * The step that is scheduled next. Each scheduled step is a new
+     * instance, so that a step that has been superseded can detect it.
+     */
+    private class StepTask
+    implements Runnable
+    {
+        @Override
+        public void run()
+        {
+            synchronized(Automation.this)
+            {
+                if( pending != this )
+                {
+                    return;
+                }
+                pending = null;
+            }
+            Automation.this.run();
+        }
+    }
+
     /**
      * This is the constructor to use when creating the automation from an
      * xml file (i.e: loading a xmpp project). It uses the "loadAttributes"
@@ -311,44 +356,79 @@ implements Runnable
     }
 
     /**
-     * Creates and starts a new thread in order to execute this
-     * automation. The thread's name is set to the name of the automation.
-     * You can only have on running thread at the same time.
+     * Starts the execution of this automation. The steps are executed by
+     * the AutomationScheduler. You can only have one execution at the
+     * same time.
      */
     public void start()
     {
-        if(thread==null)
+        synchronized(this)
         {
-            thread = new Thread(this);
-            thread.setName(uniqueName);
+            if( running == true )
+            {
+                return;
+            }
+            running = true;
             suspended = false;
             quit = false;
-            thread.start();
+            genList = null;
+            generation++;
+            nextDeadline = System.nanoTime();
+            schedule();
         }
     }
 
     /**
      * Stops the execution of the automation. The method will be blocked
-     * until the thread is terminated.
+     * until the execution is terminated.
      */
     public void stop()
     {
-        if( thread != null )
+        synchronized(this)
         {
+            if( running == false )
+            {
+                return;
+            }
             quit = true;
-            synchronized(this)
+
+            // if the automation is waiting for its next step, execute it
+            // right now so that it terminates:
+            if( (pending!=null) || (paused==true) )
             {
-                notifyAll();
+                nextDeadline = System.nanoTime();
+                schedule();
             }
-            try
+
+            long timeout = (long)(stepDelay*2000.0);
+            long end = System.currentTimeMillis() + timeout;
+            while( (running==true) && (timeout>0) )
             {
-                thread.join( (long)(stepDelay*2000.0) );
+                try
+                {
+                    wait(timeout);
+                }
+                catch (InterruptedException ex)
+                {
+                    Logger.getLogger(Automation.class.getName()).log(Level.SEVERE, null, ex);
+                    break;
+                }
+                timeout = end - System.currentTimeMillis();
             }
-            catch (InterruptedException ex)
+
+            if( running == true )
             {
-                Logger.getLogger(Automation.class.getName()).log(Level.SEVERE, null, ex);
+                // the step did not terminate in time (a slow script, for
+                // example): consider the automation as stopped anyway, so
+                // that it can be started again. The step that is still
+                // running will be discarded when it returns.
+                System.out.println("automation "+uniqueName+" did not stop in time");
+                generation++;
+                running = false;
+                pending = null;
+                paused = false;
+                genList = null;
             }
-            thread=null;
         }
     }
 
@@ -365,10 +445,14 @@ implements Runnable
      */
     public void resume()
     {
-        suspended = false;
         synchronized(this)
         {
-            notifyAll();
+            suspended = false;
+            if( paused == true )
+            {
+                nextDeadline = System.nanoTime() + (long)(stepDelay*1000000000.0);
+                schedule();
+            }
         }
     }
 
@@ -430,83 +514,152 @@ implements Runnable
      */
     public double getCurrentValue()
     {
-        return currentValue;
+        return currentSample.getValue();
+    }
+
+    /**
+     * Returns the current sample of the automation: its current value,
+     * and the registers already encoded by the bindings for this value.
+     * A new sample is published at each step.
+     * @return the current sample of the automation.
+     */
+    public AutomationSample getCurrentSample()
+    {
+        return currentSample;
+    }
+
+    private void setCurrentValue(double time, double value)
+    {
+        currentSample = new AutomationSample(time, value);
     }
 
     
+    /**
+     * Executes the steps of the automation that are due. Called by the
+     * AutomationScheduler; returns after the next step has been scheduled.
+     * If a generator throws an exception, the automation is terminated.
+     */
     @Override
     public void run()
     {
-        System.out.println("start automation thread");
-        
-        // Get generators
-        Generator genList[] = new Generator[generators.size()];
-        genList = generators.toArray(genList);
+        int gen;
+        synchronized(this)
+        {
+            gen = generation;
+        }
+
+        try
+        {
+            step(gen);
+        }
+        catch(RuntimeException ex)
+        {
+            Logger.getLogger(Automation.class.getName()).log(Level.SEVERE, "automation "+uniqueName+" terminated", ex);
+            if( isCurrent(gen) )
+            {
+                terminate();
+            }
+        }
+    }
+
+    /**
+     * Checks that the execution of a step still belongs to the current
+     * execution of the automation. It is not the case if stop() gave up
+     * waiting for the step, and the automation has been restarted since.
+     */
+    private synchronized boolean isCurrent(int gen)
+    {
+        return (gen == generation);
+    }
+
+    private void step(int gen)
+    {
+        if( genList == null )
+        {
+            System.out.println("start automation "+uniqueName);
 
-        // init automation:
-        int currentIndex = 0;
-        currentValue = initialValue;
-        boolean reloaded = false;
-        double currentTime = 0.0;
-        double startTime = 0.0;
+            // Get generators
+            genList = new Generator[generators.size()];
+            genList = generators.toArray(genList);
 
-        // init historic:
-        double totalDuration = getTotalDuration();
-        int histoNbPoints = (int)Math.ceil( totalDuration / stepDelay );
+            // init automation:
+            currentIndex = 0;
+            currentGen = null;
+            setCurrentValue(0.0, initialValue);
+            reloaded = false;
+            currentTime = 0.0;
+            startTime = 0.0;
+            nextDeadline = System.nanoTime();
 
-        fireAutomationHasStarted();
+            fireAutomationHasStarted();
+        }
 
         while( (currentIndex < genList.length) && (quit==false) )
         {
-            if( reloaded )
+            if( currentGen == null )
             {
-                fireAutomationReloaded();
-            }
+                if( reloaded )
+                {
+                    fireAutomationReloaded();
+                }
 
-            // prepare to execute generator:
-            Generator currentGen = genList[currentIndex];
-            currentGen.setInitialValue(currentValue);
-            double duration = currentGen.getDuration();
-            startTime = currentTime;
-            notifyGeneratorHasStarted(currentGen);
+                // prepare to execute generator:
+                currentGen = genList[currentIndex];
+                currentGen.setInitialValue( getCurrentValue() );
+                currentDuration = currentGen.getDuration();
+                startTime = currentTime;
+                windowIndex = 0;
+                windowCount = 0;
+                notifyGeneratorHasStarted(currentGen);
+            }
 
-            while( (currentTime < startTime + duration) && (quit==false) )
+            if( currentTime < startTime + currentDuration )
             {
                 // set current automation value:
-                currentValue = currentGen.getValue( currentTime-startTime );
-                //if( previousValue != currentValue )
-                //{
-                    fireCurrentValueChanged(currentTime, currentValue);
-                //}
+                double value = nextValue(gen);
+                if( isCurrent(gen) == false )
+                {
+                    return;
+                }
+                setCurrentValue( currentTime, value );
+                fireCurrentValueChanged(currentTime, getCurrentValue());
+                currentTime += stepDelay;
 
-                try
+                // schedule the next step, against the absolute deadline so
+                // that the time spent in this step is not added to the delay:
+                synchronized(this)
                 {
-                    while( (suspended == true) && (quit == false) )
+                    if( gen != generation )
                     {
-                        System.out.println("suspended");
-                        synchronized(this)
-                        {
-                            wait();
-                        }
+                        return;
                     }
-                    suspended = false;
                     if( quit == false )
                     {
-                        Thread.sleep( (long)(stepDelay*1000.0) );
+                        nextDeadline += (long)(stepDelay*1000000000.0);
+                        if( suspended == true )
+                        {
+                            System.out.println("suspended");
+                            paused = true;
+                        }
+                        else
+                        {
+                            schedule();
+                        }
+                        return;
                     }
                 }
-                catch (InterruptedException ex)
-                {
-                    Logger.getLogger(Automation.class.getName()).log(Level.SEVERE, null, ex);
-                }
-                currentTime += stepDelay;
-                //previousValue = currentValue;
+                continue;
             }
 
             // finish the execution of the generator
-            //previousValue = currentValue;
-            currentValue = currentGen.getValue(duration);
+            double value = currentGen.getValue(currentDuration);
+            if( isCurrent(gen) == false )
+            {
+                return;
+            }
+            setCurrentValue( currentTime, value );
             notifyGeneratorHasEnded(currentGen);
+            currentGen = null;
 
             currentIndex++;
             if( currentIndex >= genList.length )
@@ -519,21 +672,106 @@ implements Runnable
             }
         }
         
-        System.out.println("end of automation thread");
+        System.out.println("end of automation "+uniqueName);
         
-        currentValue = 0.0;
-        fireCurrentValueChanged(currentTime, currentValue);
+        setCurrentValue(currentTime, 0.0);
+        fireCurrentValueChanged(currentTime, 0.0);
+        terminate();
+    }
 
+    /**
+     * Resets the state of the execution, wakes up stop() and notifies
+     * the listeners that the automation has ended.
+     */
+    private void terminate()
+    {
+        genList = null;
+        currentGen = null;
         suspended = false;
-        if( quit==true )
+        quit = false;
+        synchronized(this)
         {
-            quit = false;
+            pending = null;
+            paused = false;
+            running = false;
+            notifyAll();
         }
-        else
+        fireAutomationHasEnded();
+    }
+
+    /**
+     * Returns the value of the current generator for the current step. If
+     * the generator has a look-ahead, the values of the next steps are
+     * computed in a single call to getValues(), and consumed one by one;
+     * they are computed again if the settings of the generator or the step
+     * delay change.
+     */
+    private double nextValue(int gen)
+    {
+        int lookAhead = currentGen.getLookAhead();
+        if( lookAhead <= 1 )
         {
-            thread=null;
+            return currentGen.getValue(currentTime-startTime);
         }
-        fireAutomationHasEnded();
+
+        int revision = currentGen.getSettingsRevision();
+        double delay = stepDelay;
+        if( (windowIndex >= windowCount) || (revision != windowRevision) || (delay != windowStepDelay) )
+        {
+            if( (windowTimes == null) || (windowTimes.length != lookAhead) )
+            {
+                windowTimes = new double[lookAhead];
+                windowValues = new double[lookAhead];
+            }
+
+            // compute the times of the next steps exactly as step() does,
+            // without going past the end of the generator:
+            int count = 0;
+            double t = currentTime;
+            while( (count < lookAhead) && (t < startTime + currentDuration) )
+            {
+                windowTimes[count++] = t-startTime;
+                t += delay;
+            }
+
+            if( count == lookAhead )
+            {
+                currentGen.getValues(windowTimes, windowValues);
+            }
+            else
+            {
+                // last window of the generator; its size is the same at
+                // each loop of the automation, so the arrays are kept:
+                if( (tailTimes == null) || (tailTimes.length != count) )
+                {
+                    tailTimes = new double[count];
+                    tailValues = new double[count];
+                }
+                System.arraycopy(windowTimes, 0, tailTimes, 0, count);
+                currentGen.getValues(tailTimes, tailValues);
+                System.arraycopy(tailValues, 0, windowValues, 0, count);
+            }
+            if( isCurrent(gen) == false )
+            {
+                return 0.0;
+            }
+            windowIndex = 0;
+            windowCount = count;
+            windowRevision = revision;
+            windowStepDelay = delay;
+        }
+        return windowValues[windowIndex++];
+    }
+
+    /**
+     * Schedules the next step at nextDeadline. Must be called while holding
+     * the lock of this automation.
+     */
+    private void schedule()
+    {
+        paused = false;
+        pending = new StepTask();
+        AutomationScheduler.schedule(pending, nextDeadline);
     }
 
     /**
@@ -553,7 +791,7 @@ implements Runnable
      */
     public boolean isRunning()
     {
-        return (thread!=null);
+        return running;
     }
 
     /**
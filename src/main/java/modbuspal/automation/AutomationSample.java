@@ -0,0 +1,99 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package modbuspal.automation;
+
+import modbuspal.binding.Binding;
+
+/**
+ * A value produced by an automation at a given step. A new sample is
+ * published at each step, and is never modified afterwards; so a request
+ * that reads several registers bound to the same automation can take one
+ * sample and get consistent words, even if the automation steps in the
+ * middle of the request.
+ * <p>
+ * The sample also caches the registers produced by the bindings: the first
+ * binding that needs the value encoded in a given format (see
+ * Binding.getEncodingKey()) encodes it, and all the other bindings with the
+ * same encoding read the same array until the next step.
+ * @author nnovic
+ */
+public final class AutomationSample
+{
+    /**
+     * An entry of the cache of encoded registers.
+     */
+    private static final class Encoding
+    {
+        final Object key;
+        final int words[];
+        final Encoding next;
+
+        Encoding(Object k, int[] w, Encoding n)
+        {
+            key = k;
+            words = w;
+            next = n;
+        }
+    }
+
+    private final double time;
+    private final double value;
+    private volatile Encoding encodings = null;
+
+    /**
+     * Creates a new sample.
+     * @param t the time of the sample, in seconds since the automation started
+     * @param v the value of the automation
+     */
+    public AutomationSample(double t, double v)
+    {
+        time = t;
+        value = v;
+    }
+
+    /**
+     * Returns the time of this sample.
+     * @return time of the sample, in seconds since the automation started
+     */
+    public double getTime()
+    {
+        return time;
+    }
+
+    /**
+     * Returns the value of the automation.
+     * @return the value of the automation
+     */
+    public double getValue()
+    {
+        return value;
+    }
+
+    /**
+     * Returns the registers produced by the binding for this sample. The
+     * array is shared by all the bindings that have the same encoding key,
+     * and must not be modified.
+     * @param binding the binding that encodes the value
+     * @param key the encoding key of the binding, not null
+     * @return the registers of the encoded value; see Binding.encode()
+     */
+    public int[] getWords(Binding binding, Object key)
+    {
+        Encoding first = encodings;
+        for( Encoding e=first; e!=null; e=e.next )
+        {
+            if( e.key.equals(key) )
+            {
+                return e.words;
+            }
+        }
+
+        // when two threads encode the same value at the same time, one of
+        // the entries is lost, which only costs another encoding later:
+        int words[] = binding.encode(value);
+        encodings = new Encoding(key, words, first);
+        return words;
+    }
+}
@@ -0,0 +1,376 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package modbuspal.automation;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import modbuspal.toolkit.ThreadTools;
+
+/**
+ * Runs the steps of all the automations, instead of having one sleeping
+ * thread per automation. The deadlines are absolute (System.nanoTime), so
+ * the time spent computing a step does not delay the next one.
+ * <p>
+ * The pending timers are kept in a hierarchical timing wheel: 4 levels of
+ * 64 slots, with a resolution of 1 ms at the first level, which covers about
+ * 4.6 hours; longer timers are parked in the last level and re-inserted
+ * when they come back. Inserting and expiring a timer costs O(1), whatever
+ * the number of automations. A single thread advances the wheel; when a
+ * timer expires, its task is handed over to a pool of worker threads, so
+ * that a slow step (a script for example) does not delay the others. While
+ * no timer is about to expire, the thread sleeps until the next slot that
+ * is occupied, at any level.
+ * <p>
+ * Two metrics are measured for every expired timer: the lag, which is the
+ * delay between the deadline and the moment the scheduler thread dispatches
+ * the task, and the jitter, which is the delay between the deadline and
+ * the moment the task actually starts on a worker thread.
+ * @author nnovic
+ */
+public class AutomationScheduler
+implements Runnable
+{
+    private static final long TICK_NANOS = 1000000L;
+    private static final int LEVEL_BITS = 6;
+    private static final int SLOT_COUNT = 1 << LEVEL_BITS;
+    private static final int SLOT_MASK = SLOT_COUNT - 1;
+    private static final int LEVEL_COUNT = 4;
+    private static final long MAX_DELTA = (1L << (LEVEL_BITS*LEVEL_COUNT)) - 1;
+
+    /**
+     * A task registered in the scheduler.
+     */
+    static final class Timeout
+    {
+        private final Runnable task;
+        private final long deadline;
+        final long tick;
+        private Timeout next = null;
+        private volatile boolean cancelled = false;
+
+        Timeout(Runnable r, long deadlineNanos)
+        {
+            task = r;
+            deadline = deadlineNanos;
+            tick = Math.max(0, (deadlineNanos - ORIGIN + TICK_NANOS - 1) / TICK_NANOS);
+        }
+
+        /**
+         * Cancels the task, if it has not been dispatched yet.
+         */
+        void cancel()
+        {
+            cancelled = true;
+        }
+    }
+
+    /** time base of the wheel: tick n starts at ORIGIN + n*TICK_NANOS */
+    static final long ORIGIN = System.nanoTime();
+    private static final AutomationScheduler instance = new AutomationScheduler();
+
+    private final Timeout wheel[][] = new Timeout[LEVEL_COUNT][SLOT_COUNT];
+    private final long occupied[] = new long[LEVEL_COUNT];
+    private final ConcurrentLinkedQueue<Timeout> inserted = new ConcurrentLinkedQueue<Timeout>();
+    /** the timers that have expired and are waiting to be dispatched */
+    final ArrayList<Timeout> expired = new ArrayList<Timeout>();
+    private long now = 0;
+    private Thread thread = null;
+    private ExecutorService workers = null;
+
+    private final AtomicLong lagSum = new AtomicLong();
+    private final AtomicLong lagMax = new AtomicLong();
+    private final AtomicLong jitterSum = new AtomicLong();
+    private final AtomicLong jitterMax = new AtomicLong();
+    private final AtomicLong dispatchedCount = new AtomicLong();
+    private final AtomicLong expiredCount = new AtomicLong();
+
+    /**
+     * Creates a scheduler. The thread is only started when the first task
+     * is scheduled; tests can drive the wheel with insert() and advance().
+     */
+    AutomationScheduler()
+    {
+    }
+
+    /**
+     * Schedules a task. The task is executed by a worker thread, as soon as
+     * possible after the deadline.
+     * @param r the task to execute
+     * @param deadline the deadline, in the time base of System.nanoTime()
+     * @return the timer, that can be used to cancel the task
+     */
+    static Timeout schedule(Runnable r, long deadline)
+    {
+        return instance.add( new Timeout(r, deadline) );
+    }
+
+    private Timeout add(Timeout t)
+    {
+        synchronized(this)
+        {
+            if( thread == null )
+            {
+                workers = ThreadTools.newExecutor("automation");
+                thread = ThreadTools.newThreadFactory("automation scheduler").newThread(this);
+                thread.start();
+            }
+        }
+        inserted.add(t);
+        LockSupport.unpark(thread);
+        return t;
+    }
+
+    @Override
+    public void run()
+    {
+        while( true )
+        {
+            long realTick = (System.nanoTime() - ORIGIN) / TICK_NANOS;
+
+            // insert the new timers:
+            Timeout t;
+            while( (t=inserted.poll()) != null )
+            {
+                insert(t);
+            }
+
+            advance(realTick);
+            dispatch();
+
+            // sleep until the next event, or until a timer is inserted:
+            long next = nextEventTick();
+            if( inserted.isEmpty() == true )
+            {
+                if( next < 0 )
+                {
+                    LockSupport.park(this);
+                }
+                else
+                {
+                    LockSupport.parkNanos(this, ORIGIN + next*TICK_NANOS - System.nanoTime());
+                }
+            }
+        }
+    }
+
+    /**
+     * Advances the wheel up to the specified tick, jumping over the ticks
+     * where nothing happens. The timers that expire are moved into the
+     * "expired" list.
+     * @param realTick the current tick
+     */
+    void advance(long realTick)
+    {
+        while( true )
+        {
+            long next = nextEventTick();
+            if( (next<0) || (next>realTick) )
+            {
+                now = Math.max(now, realTick);
+                return;
+            }
+            now = next;
+            processTick();
+        }
+    }
+
+    void insert(Timeout t)
+    {
+        if( t.cancelled == true )
+        {
+            return;
+        }
+
+        long delta = t.tick - now;
+        if( delta <= 0 )
+        {
+            expired.add(t);
+            return;
+        }
+
+        // timers that are too far away are parked at the far end of the
+        // last level, and re-inserted when they expire:
+        long tick = now + Math.min(delta, MAX_DELTA);
+        int level = 0;
+        while( (level < LEVEL_COUNT-1) && (delta >= (1L << (LEVEL_BITS*(level+1)))) )
+        {
+            level++;
+        }
+        int slot = (int)( (tick >>> (LEVEL_BITS*level)) & SLOT_MASK );
+        t.next = wheel[level][slot];
+        wheel[level][slot] = t;
+        occupied[level] |= (1L << slot);
+    }
+
+    /**
+     * Returns the next tick where something happens: a slot of the first
+     * level is expired, or an occupied slot of an upper level is cascaded.
+     * @return the next tick, or -1 if the wheel is empty
+     */
+    long nextEventTick()
+    {
+        long next = -1;
+        for( int level=0; level<LEVEL_COUNT; level++ )
+        {
+            if( occupied[level] != 0 )
+            {
+                int shift = LEVEL_BITS*level;
+                long block = now >>> shift;
+                long rotated = Long.rotateRight(occupied[level], (int)(block & SLOT_MASK)+1);
+                long tick = (block + 1 + Long.numberOfTrailingZeros(rotated)) << shift;
+                if( (next<0) || (tick<next) )
+                {
+                    next = tick;
+                }
+            }
+        }
+        return next;
+    }
+
+    private void processTick()
+    {
+        // cascade the upper levels, the highest first:
+        for( int level=LEVEL_COUNT-1; level>0; level-- )
+        {
+            long mask = (1L << (LEVEL_BITS*level)) - 1;
+            if( (now & mask) == 0 )
+            {
+                int slot = (int)( (now >>> (LEVEL_BITS*level)) & SLOT_MASK );
+                Timeout t = take(level, slot);
+                while( t != null )
+                {
+                    Timeout next = t.next;
+                    t.next = null;
+                    insert(t);
+                    t = next;
+                }
+            }
+        }
+
+        // expire the timers of the current slot:
+        Timeout t = take(0, (int)(now & SLOT_MASK));
+        while( t != null )
+        {
+            Timeout next = t.next;
+            t.next = null;
+            insert(t);
+            t = next;
+        }
+    }
+
+    private Timeout take(int level, int slot)
+    {
+        Timeout t = wheel[level][slot];
+        wheel[level][slot] = null;
+        occupied[level] &= ~(1L << slot);
+        return t;
+    }
+
+    private void dispatch()
+    {
+        for( int i=0; i<expired.size(); i++ )
+        {
+            final Timeout t = expired.get(i);
+            if( t.cancelled == true )
+            {
+                continue;
+            }
+
+            long lag = Math.max(0, System.nanoTime() - t.deadline);
+            lagSum.addAndGet(lag);
+            dispatchedCount.incrementAndGet();
+            updateMax(lagMax, lag);
+
+            workers.execute( new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    long jitter = Math.max(0, System.nanoTime() - t.deadline);
+                    jitterSum.addAndGet(jitter);
+                    updateMax(jitterMax, jitter);
+                    expiredCount.incrementAndGet();
+                    t.task.run();
+                }
+            });
+        }
+        expired.clear();
+    }
+
+    private static void updateMax(AtomicLong max, long value)
+    {
+        long current = max.get();
+        while( (value>current) && (max.compareAndSet(current, value)==false) )
+        {
+            current = max.get();
+        }
+    }
+
+    /**
+     * Returns the number of tasks that have been executed since the last
+     * reset of the metrics.
+     * @return the number of executed tasks
+     */
+    public static long getExpiredCount()
+    {
+        return instance.expiredCount.get();
+    }
+
+    /**
+     * Returns the average delay between the deadline of a task and its
+     * dispatch by the scheduler thread.
+     * @return the average lag, in nanoseconds
+     */
+    public static long getAverageLag()
+    {
+        return instance.lagSum.get() / Math.max(1, instance.dispatchedCount.get());
+    }
+
+    /**
+     * Returns the longest delay between the deadline of a task and its
+     * dispatch by the scheduler thread.
+     * @return the maximum lag, in nanoseconds
+     */
+    public static long getMaxLag()
+    {
+        return instance.lagMax.get();
+    }
+
+    /**
+     * Returns the average delay between the deadline of a task and the
+     * moment it starts on a worker thread.
+     * @return the average jitter, in nanoseconds
+     */
+    public static long getAverageJitter()
+    {
+        return instance.jitterSum.get() / Math.max(1, instance.expiredCount.get());
+    }
+
+    /**
+     * Returns the longest delay between the deadline of a task and the
+     * moment it starts on a worker thread.
+     * @return the maximum jitter, in nanoseconds
+     */
+    public static long getMaxJitter()
+    {
+        return instance.jitterMax.get();
+    }
+
+    /**
+     * Resets all the metrics to 0.
+     */
+    public static void resetMetrics()
+    {
+        instance.dispatchedCount.set(0);
+        instance.expiredCount.set(0);
+        instance.lagSum.set(0);
+        instance.lagMax.set(0);
+        instance.jitterSum.set(0);
+        instance.jitterMax.set(0);
+    }
+}
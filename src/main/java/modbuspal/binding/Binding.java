@@ -8,7 +8,7 @@ package modbuspal.binding;
 import java.io.IOException;
 import java.io.OutputStream;
 import modbuspal.automation.Automation;
-import modbuspal.automation.AutomationExecutionListener;
+import modbuspal.automation.AutomationSample;
 import modbuspal.instanciator.Instantiable;
 import modbuspal.slave.ModbusRegisters;
 
@@ -17,7 +17,7 @@ import modbuspal.slave.ModbusRegisters;
  * @author nnovic
  */
 public abstract class Binding
-implements AutomationExecutionListener, Cloneable, Instantiable<Binding>
+implements Cloneable, Instantiable<Binding>
 {
 
     @Override
@@ -57,7 +57,6 @@ implements AutomationExecutionListener, Cloneable, Instantiable<Binding>
     {
         registers = l;
         registerAddress = address;
-        automation.addAutomationExecutionListener(this);
     }
 
 
@@ -69,25 +68,6 @@ implements AutomationExecutionListener, Cloneable, Instantiable<Binding>
     public final void detach()
     {
         registers=null;
-        automation.removeAutomationExecutionListener(this);
-    }
-
-    @Override
-    public void automationValueHasChanged(Automation source, double time, double value)
-    {
-        registers.notifyRegisterChanged(registerAddress);
-    }
-
-    @Override
-    public void automationHasStarted(Automation source) {
-    }
-
-    @Override
-    public void automationHasEnded(Automation source) {
-    }
-
-    @Override
-    public void automationReloaded(Automation source) {
     }
 
     /**
@@ -130,13 +110,74 @@ implements AutomationExecutionListener, Cloneable, Instantiable<Binding>
     }
 
     /**
-     * Calls getRegister(int,double) with the order and value of the automation
-     * previously specified by setup(Automation,int)
+     * Returns the automation that has been associated to this binding by
+     * calling the setup() method.
+     * @return the source automation
+     */
+    public final Automation getAutomation()
+    {
+        return automation;
+    }
+
+    /**
+     * Returns the register of this binding for the current sample of the
+     * automation previously specified by setup(Automation,int).
      * @return the value of the register
      */
     public final int getRegister()
     {
-        return getRegister(order, automation.getCurrentValue());
+        return getRegister( automation.getCurrentSample() );
+    }
+
+    /**
+     * Returns the register of this binding for the specified sample of the
+     * automation. If the binding has an encoding key, the value is encoded
+     * only once per sample, and shared with the other bindings of the same
+     * encoding; otherwise, getRegister(int,double) is called.
+     * @param sample a sample of the automation of this binding
+     * @return the value of the register
+     */
+    public final int getRegister(AutomationSample sample)
+    {
+        Object key = getEncodingKey();
+        if( key == null )
+        {
+            return getRegister(order, sample.getValue());
+        }
+        int words[] = sample.getWords(this, key);
+        return words[ Math.min(order, words.length-1) ];
+    }
+
+    /**
+     * Identifies the way this binding encodes the values of the automation
+     * into registers. Two bindings with equal keys must return the same
+     * registers for the same value, so that they can share the result of
+     * encode(). By default, the key is the class of the binding. A binding
+     * whose registers cannot be cached must return null.
+     * @return the encoding key, or null
+     */
+    public Object getEncodingKey()
+    {
+        return getClass();
+    }
+
+    /**
+     * Encodes a value into all the registers of this binding, by calling
+     * getRegister(int,double) for each order. The last element of the
+     * array is the register returned for all the orders beyond the size of
+     * the binding (usually the sign extension).
+     * @param value the value to encode
+     * @return the registers, from order 0 to getSize()/16
+     */
+    public int[] encode(double value)
+    {
+        int count = Math.max(1, getSize()/16);
+        int words[] = new int[count+1];
+        for( int i=0; i<=count; i++ )
+        {
+            words[i] = getRegister(i, value);
+        }
+        return words;
     }
 
 
@@ -158,7 +199,27 @@ implements AutomationExecutionListener, Cloneable, Instantiable<Binding>
      */
     public final boolean getCoil()
     {
-        return getCoil(order, automation.getCurrentValue());
+        return getCoil( automation.getCurrentSample() );
+    }
+
+    /**
+     * Returns the coil of this binding for the specified sample of the
+     * automation. If the binding has an encoding key, the coil is taken
+     * from the registers encoded for the sample; otherwise,
+     * getCoil(int,double) is called.
+     * @param sample a sample of the automation of this binding
+     * @return the value of the coil
+     */
+    public final boolean getCoil(AutomationSample sample)
+    {
+        Object key = getEncodingKey();
+        if( key == null )
+        {
+            return getCoil(order, sample.getValue());
+        }
+        int words[] = sample.getWords(this, key);
+        int reg = words[ Math.min(order/16, words.length-1) ];
+        return ( reg & (1 << (order%16)) ) != 0;
     }
 
 
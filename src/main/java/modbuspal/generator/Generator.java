@@ -30,19 +30,24 @@ import org.w3c.dom.NodeList;
 public abstract class Generator
 implements Instantiable<Generator>
 {   
-    private ImageIcon icon;
+    private URL iconLocation = null;
+    private String iconFile = null;
+    private ImageIcon icon = null;
     private double duration = 10;
     private double initialValue = 0.0;
-    private JPanel controlPanel;
+    private JPanel controlPanel = null;
+    private int lookAhead = 1;
+    private volatile int settingsRevision = 0;
 
     /**
      * Constructor of the Generator class. Creates a generator with default
-     * values, icon and control panel.
+     * values, icon and control panel. The icon and the control panel are
+     * only created when they are displayed, so that a project that runs
+     * without user interface does not initialize Swing.
      */
     public Generator()
     {
         setIcon("/modbuspal/generator/Generator.png");
-        controlPanel = createControlPanel();
     }
 
     
@@ -63,7 +68,7 @@ implements Instantiable<Generator>
      * @param iconUrl a string describing the path of the icon image file
      * @return true if the icon with changed successfully
      */
-    public final boolean setIcon(String iconUrl)
+    public final synchronized boolean setIcon(String iconUrl)
     {
         URL url = null;
 
@@ -71,7 +76,7 @@ implements Instantiable<Generator>
         url = getClass().getResource(iconUrl);
         if( url!=null )
         {
-            icon = new ImageIcon(url);
+            changeIcon(url, null);
             return true;
         }
 
@@ -81,7 +86,7 @@ implements Instantiable<Generator>
             url = new URL(iconUrl);
             if( url != null )
             {
-                icon = new ImageIcon(url);
+                changeIcon(url, null);
                 return true;
             }
         }
@@ -94,20 +99,39 @@ implements Instantiable<Generator>
         File file = new File(iconUrl);
         if( file.exists() )
         {
-            icon = new ImageIcon(file.getAbsolutePath());
+            changeIcon(null, file.getAbsolutePath());
             return true;
         }
 
         return false;
     }
 
+    private void changeIcon(URL url, String file)
+    {
+        // the image is loaded by getIcon():
+        iconLocation = url;
+        iconFile = file;
+        icon = null;
+    }
+
     /**
      * Get the icon that is associated with this generator. If you have not set
      * an icon (using the setIcon method), then the default icon is returned.
      * @return icon of the generator.
      */
-    public Icon getIcon()
+    public synchronized Icon getIcon()
     {
+        if( icon == null )
+        {
+            if( iconLocation != null )
+            {
+                icon = new ImageIcon(iconLocation);
+            }
+            else if( iconFile != null )
+            {
+                icon = new ImageIcon(iconFile);
+            }
+        }
         return icon;
     }
 
@@ -144,6 +168,10 @@ implements Instantiable<Generator>
      */
     public JPanel getControlPanel()
     {
+        if( controlPanel == null )
+        {
+            controlPanel = createControlPanel();
+        }
         return controlPanel;
     }
 
@@ -169,6 +197,70 @@ implements Instantiable<Generator>
      */
     public abstract double getValue(double time);
 
+    /**
+     * Generates the values for several instants at once. The running
+     * automation calls this method instead of getValue() when the look-ahead
+     * of the generator is greater than 1, in order to compute the values of
+     * the next steps in advance. The default implementation calls getValue()
+     * for each instant; subclasses can override it when computing several
+     * values at once is cheaper, which is the case for Python generators.
+     * @param times the instants, in seconds, as they would be passed to getValue()
+     * @param values the array that receives the values; it has the same
+     * length as times.
+     */
+    public void getValues(double[] times, double[] values)
+    {
+        for( int i=0; i<times.length; i++ )
+        {
+            values[i] = getValue(times[i]);
+        }
+    }
+
+    /**
+     * Returns the number of steps that the automation can compute in advance
+     * with getValues(). Generators that depend on something else than the
+     * time (other automations, external data...) should keep the default
+     * value, which is 1: no look-ahead.
+     * @return the maximum number of values computed by one call to getValues()
+     */
+    public int getLookAhead()
+    {
+        return lookAhead;
+    }
+
+    /**
+     * Defines the number of steps that the automation can compute in advance
+     * with getValues(). It is typically called by the init() method of a
+     * Python generator.
+     * @param steps the maximum number of values computed by one call to
+     * getValues(); 1 disables the look-ahead.
+     */
+    public void setLookAhead(int steps)
+    {
+        lookAhead = Math.max(1, steps);
+    }
+
+    /**
+     * Generators that have a look-ahead must call this method when one of
+     * their settings is modified, so that the values that the automation
+     * has computed in advance are discarded.
+     */
+    public void notifySettingsChanged()
+    {
+        settingsRevision++;
+    }
+
+    /**
+     * Returns a number that changes each time notifySettingsChanged() is
+     * called. The automation compares it with the value it had when the
+     * values of the next steps were computed.
+     * @return the revision of the settings of this generator
+     */
+    public int getSettingsRevision()
+    {
+        return settingsRevision;
+    }
+
 
     /**
      * Loads the parameters of this generator from a DOM tree structure. Usually,
@@ -217,6 +309,7 @@ implements Instantiable<Generator>
     void setDuration(double val)
     {
         duration = val;
+        notifySettingsChanged();
     }
 
 
@@ -102,18 +102,22 @@ extends javax.swing.JPanel
 
     private void endTextFieldFocusLost(java.awt.event.FocusEvent evt) {//GEN-FIRST:event_endTextFieldFocusLost
         generator.endValue = Double.parseDouble( endTextField.getText() );
+        generator.notifySettingsChanged();
     }//GEN-LAST:event_endTextFieldFocusLost
 
     private void startTextFieldFocusLost(java.awt.event.FocusEvent evt) {//GEN-FIRST:event_startTextFieldFocusLost
         generator.startValue = Double.parseDouble( startTextField.getText() );
+        generator.notifySettingsChanged();
     }//GEN-LAST:event_startTextFieldFocusLost
 
     private void startRelativeCheckBoxActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_startRelativeCheckBoxActionPerformed
         generator.relativeStart = startRelativeCheckBox.isSelected();
+        generator.notifySettingsChanged();
     }//GEN-LAST:event_startRelativeCheckBoxActionPerformed
 
     private void endRelativeCheckBoxActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_endRelativeCheckBoxActionPerformed
         generator.relativeEnd = endRelativeCheckBox.isSelected();
+        generator.notifySettingsChanged();
     }//GEN-LAST:event_endRelativeCheckBoxActionPerformed
 
 
@@ -20,7 +20,7 @@ import org.w3c.dom.NodeList;
 public class LinearGenerator
 extends Generator
 {
-    private LinearControlPanel panel;
+    private LinearControlPanel panel = null;
     double startValue = 0.0;
     double endValue = 0.0;
     boolean relativeStart = false;
@@ -32,11 +32,16 @@ extends Generator
     public LinearGenerator()
     {
         setIcon("LinearGenerator.png");
-        panel = new LinearControlPanel(this);
+        // the values only depend on the time and on the settings, which
+        // call notifySettingsChanged() when they are modified:
+        setLookAhead(16);
     }
 
-    @Override
-    public double getValue(double time)
+    /**
+     * Returns the start and the end values of the line, relative values
+     * included.
+     */
+    private double[] getBounds()
     {
         double y1 = startValue;
         if( relativeStart == true )
@@ -50,7 +55,26 @@ extends Generator
             y2 += y1;
         }
 
-        return y1 + time * (y2-y1) / getDuration();
+        return new double[]{ y1, y2 };
+    }
+
+    @Override
+    public double getValue(double time)
+    {
+        double y[] = getBounds();
+        return y[0] + time * (y[1]-y[0]) / getDuration();
+    }
+
+    @Override
+    public void getValues(double[] times, double[] values)
+    {
+        double y[] = getBounds();
+        double delta = y[1]-y[0];
+        double duration = getDuration();
+        for( int i=0; i<times.length; i++ )
+        {
+            values[i] = y[0] + times[i] * delta / duration;
+        }
     }
 
     @Override
@@ -78,6 +102,8 @@ extends Generator
 
         Node endNode = XMLTools.getNode(childNodes, "end");
         loadEnd(endNode);
+
+        notifySettingsChanged();
     }
 
     private void loadEnd(Node node)
@@ -90,9 +116,12 @@ extends Generator
         endValue = Double.parseDouble(endVal);
         relativeEnd = Boolean.parseBoolean(endRel);
 
-        // update generator's panel
-        panel.endTextField.setText( String.valueOf(endVal) );
-        panel.endRelativeCheckBox.setSelected(relativeEnd);
+        // update generator's panel, if it has been created
+        if( panel != null )
+        {
+            panel.endTextField.setText( String.valueOf(endVal) );
+            panel.endRelativeCheckBox.setSelected(relativeEnd);
+        }
     }
 
     private void loadStart(Node node)
@@ -105,14 +134,23 @@ extends Generator
         startValue = Double.parseDouble(startVal);
         relativeStart = Boolean.parseBoolean(startRel);
         
-        // update generator's panel
-        panel.startTextField.setText( String.valueOf(startValue) );
-        panel.startRelativeCheckBox.setSelected(relativeStart);
+        // update generator's panel, if it has been created
+        if( panel != null )
+        {
+            panel.startTextField.setText( String.valueOf(startValue) );
+            panel.startRelativeCheckBox.setSelected(relativeStart);
+        }
     }
 
     @Override
     public JPanel getControlPanel()
     {
+        // the panel is initialized with the current settings of the
+        // generator:
+        if( panel == null )
+        {
+            panel = new LinearControlPanel(this);
+        }
         return panel;
     }
 
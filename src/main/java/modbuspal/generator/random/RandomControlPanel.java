@@ -102,18 +102,22 @@ extends javax.swing.JPanel
 
     private void maxTextFieldFocusLost(java.awt.event.FocusEvent evt) {//GEN-FIRST:event_maxTextFieldFocusLost
         generator.maxValue = Double.parseDouble( maxTextField.getText() );
+        generator.notifySettingsChanged();
 }//GEN-LAST:event_maxTextFieldFocusLost
 
     private void minTextFieldFocusLost(java.awt.event.FocusEvent evt) {//GEN-FIRST:event_minTextFieldFocusLost
         generator.minValue = Double.parseDouble( minTextField.getText() );
+        generator.notifySettingsChanged();
 }//GEN-LAST:event_minTextFieldFocusLost
 
     private void minRelativeCheckBoxActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_minRelativeCheckBoxActionPerformed
         generator.relativeMin = minRelativeCheckBox.isSelected();
+        generator.notifySettingsChanged();
 }//GEN-LAST:event_minRelativeCheckBoxActionPerformed
 
     private void maxRelativeCheckBoxActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_maxRelativeCheckBoxActionPerformed
         generator.relativeMax = maxRelativeCheckBox.isSelected();
+        generator.notifySettingsChanged();
 }//GEN-LAST:event_maxRelativeCheckBoxActionPerformed
 
 
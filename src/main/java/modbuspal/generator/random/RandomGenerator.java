@@ -20,7 +20,7 @@ import org.w3c.dom.NodeList;
 public class RandomGenerator
 extends Generator
 {
-    private RandomControlPanel panel;
+    private RandomControlPanel panel = null;
     double minValue = 0.0;
     double maxValue = 0.0;
     boolean relativeMin = false;
@@ -32,11 +32,16 @@ extends Generator
     public RandomGenerator()
     {
         setIcon("RandomGenerator.png");
-        panel = new RandomControlPanel(this);
+        // the random values do not depend on anything else than the
+        // settings, so they can be drawn in advance:
+        setLookAhead(16);
     }
 
-    @Override
-    public double getValue(double time)
+    /**
+     * Returns the lowest and the highest values that can be generated,
+     * relative values included.
+     */
+    private double[] getRange()
     {
         double lowest = minValue;
         if( relativeMin == true )
@@ -50,8 +55,25 @@ extends Generator
             highest += lowest;
         }
 
+        return new double[]{ lowest, highest };
+    }
+
+    @Override
+    public double getValue(double time)
+    {
+        double range[] = getRange();
         double ran = Math.random();
-        return lowest + ran * (highest-lowest);
+        return range[0] + ran * (range[1]-range[0]);
+    }
+
+    @Override
+    public void getValues(double[] times, double[] values)
+    {
+        double range[] = getRange();
+        for( int i=0; i<values.length; i++ )
+        {
+            values[i] = range[0] + Math.random() * (range[1]-range[0]);
+        }
     }
 
     @Override
@@ -79,6 +101,8 @@ extends Generator
 
         Node maxNode = XMLTools.getNode(childNodes, "max");
         loadMax(maxNode);
+
+        notifySettingsChanged();
     }
 
     private void loadMax(Node node)
@@ -91,9 +115,12 @@ extends Generator
         maxValue = Double.parseDouble(maxVal);
         relativeMax = Boolean.parseBoolean(maxRel);
 
-        // update generator's panel
-        panel.maxTextField.setText( String.valueOf(maxVal) );
-        panel.maxRelativeCheckBox.setSelected(relativeMax);
+        // update generator's panel, if it has been created
+        if( panel != null )
+        {
+            panel.maxTextField.setText( String.valueOf(maxVal) );
+            panel.maxRelativeCheckBox.setSelected(relativeMax);
+        }
     }
 
     private void loadMin(Node node)
@@ -106,14 +133,23 @@ extends Generator
         minValue = Double.parseDouble(minVal);
         relativeMin = Boolean.parseBoolean(minRel);
         
-        // update generator's panel
-        panel.minTextField.setText( String.valueOf(minValue) );
-        panel.minRelativeCheckBox.setSelected(relativeMin);
+        // update generator's panel, if it has been created
+        if( panel != null )
+        {
+            panel.minTextField.setText( String.valueOf(minValue) );
+            panel.minRelativeCheckBox.setSelected(relativeMin);
+        }
     }
 
     @Override
     public JPanel getControlPanel()
     {
+        // the panel is initialized with the current settings of the
+        // generator:
+        if( panel == null )
+        {
+            panel = new RandomControlPanel(this);
+        }
         return panel;
     }
 
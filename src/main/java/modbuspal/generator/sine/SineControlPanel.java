@@ -127,6 +127,7 @@ extends javax.swing.JPanel
         if( newAmp != 0 )
         {
             sineGen.amplitude = newAmp;
+            sineGen.notifySettingsChanged();
         }
         else
         {
@@ -141,6 +142,7 @@ extends javax.swing.JPanel
         if( newP != 0 )
         {
             sineGen.period = newP;
+            sineGen.notifySettingsChanged();
         }
         else
         {
@@ -150,11 +152,13 @@ extends javax.swing.JPanel
 
     private void catchupCheckBoxFocusLost(java.awt.event.FocusEvent evt) {//GEN-FIRST:event_catchupCheckBoxFocusLost
         sineGen.catchup = catchupCheckBox.isSelected();
+        sineGen.notifySettingsChanged();
     }//GEN-LAST:event_catchupCheckBoxFocusLost
 
     private void offsetTextFieldFocusLost(java.awt.event.FocusEvent evt) {//GEN-FIRST:event_offsetTextFieldFocusLost
         double newO = ((NumericTextField)offsetTextField).getDouble();
         sineGen.offset = newO;
+        sineGen.notifySettingsChanged();
     }//GEN-LAST:event_offsetTextFieldFocusLost
 
 
@@ -20,7 +20,7 @@ import org.w3c.dom.NodeList;
 public class SineGenerator
 extends Generator
 {
-    private SineControlPanel panel;
+    private SineControlPanel panel = null;
     private double initialAngle = 0.0;
     double amplitude = 1.0;
     double period = 1.0;
@@ -33,7 +33,7 @@ extends Generator
     public SineGenerator()
     {
         setIcon("SineGenerator.png");
-        panel = new SineControlPanel(this);
+        setLookAhead(16);
     }
 
     @Override
@@ -43,6 +43,16 @@ extends Generator
         return offset + amplitude * Math.sin( initialAngle+time*angle );
     }
 
+    @Override
+    public void getValues(double[] times, double[] values)
+    {
+        double angle = (2*Math.PI) / period;
+        for( int i=0; i<times.length; i++ )
+        {
+            values[i] = offset + amplitude * Math.sin( initialAngle+times[i]*angle );
+        }
+    }
+
     @Override
     public void setInitialValue(double value)
     {
@@ -115,12 +125,16 @@ extends Generator
         {
             catchup = Boolean.parseBoolean( XMLTools.getAttribute("enabled", cuNode) );
         }
+        notifySettingsChanged();
 
 
-        panel.amplitudeTextField.setText( String.valueOf(amplitude) );
-        panel.periodTextField.setText( String.valueOf(period) );
-        panel.offsetTextField.setText( String.valueOf(offset) );
-        panel.catchupCheckBox.setSelected(catchup);
+        if( panel != null )
+        {
+            panel.amplitudeTextField.setText( String.valueOf(amplitude) );
+            panel.periodTextField.setText( String.valueOf(period) );
+            panel.offsetTextField.setText( String.valueOf(offset) );
+            panel.catchupCheckBox.setSelected(catchup);
+        }
     }
     
 
@@ -158,6 +172,12 @@ extends Generator
     @Override
     public JPanel getControlPanel()
     {
+        // the panel is initialized with the current settings of the
+        // generator:
+        if( panel == null )
+        {
+            panel = new SineControlPanel(this);
+        }
         return panel;
     }
 
@@ -5,41 +5,106 @@
 
 package modbuspal.link;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
+import java.util.concurrent.locks.LockSupport;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import modbuspal.main.ModbusPalProject;
 import modbuspal.master.ModbusMasterRequest;
-import modbuspal.recorder.ModbusPalRecord;
+import modbuspal.recorder.ModbusPalRecording;
 import modbuspal.slave.ModbusSlaveAddress;
 
 /**
  * The replay link reproduces the incoming requests from a previously recorded
- * session
+ * session. The whole recording is loaded in memory before the replay starts.
+ * The requests are replayed with the timing of the recording, scaled by a
+ * speed factor between 0.1 and 100, or as fast as possible. The speed is
+ * initialized from the "modbuspal.replay.speed" system property: a number,
+ * or "max" for as fast as possible. When the replay ends, the achieved
+ * throughput is printed.
  * @author nnovic
  */
 public class ModbusReplayLink
 extends ModbusSlaveProcessor
 implements ModbusLink, Runnable
 {
+    /** name of the system property that defines the default replay speed */
+    public static final String SPEED_PROPERTY = "modbuspal.replay.speed";
+
+    /** speed factor that replays the requests as fast as possible */
+    public static final double AS_FAST_AS_POSSIBLE = 0;
+
+    /** slowest speed factor */
+    public static final double MIN_SPEED = 0.1;
+
+    /** fastest speed factor, apart from AS_FAST_AS_POSSIBLE */
+    public static final double MAX_SPEED = 100;
+
     private File recordFile = null;
-    private boolean executeThread=false;
+    private final double speed;
+    private volatile boolean executeThread=false;
     private Thread serverThread;
     private ModbusLinkListener listener = null;
+    private volatile int replayedCount = 0;
 
     /**
-     * Creates a new instance of ModbusReplayLink.
+     * Creates a new instance of ModbusReplayLink. The replay speed is
+     * defined by the "modbuspal.replay.speed" system property, 1 by
+     * default.
      * @param mpp the project this link should run
      * @param source the file where the data to replay was recorded.
      */
     public ModbusReplayLink(ModbusPalProject mpp, File source)
+    {
+        this(mpp, source, parseSpeed( System.getProperty(SPEED_PROPERTY, "1") ) );
+    }
+
+    /**
+     * Creates a new instance of ModbusReplayLink.
+     * @param mpp the project this link should run
+     * @param source the file where the data to replay was recorded.
+     * @param speedFactor the speed of the replay, compared to the speed of
+     * the recording: between MIN_SPEED and MAX_SPEED, or AS_FAST_AS_POSSIBLE.
+     */
+    public ModbusReplayLink(ModbusPalProject mpp, File source, double speedFactor)
     {
         super(mpp);
         recordFile = source;
+        if( speedFactor != AS_FAST_AS_POSSIBLE )
+        {
+            speedFactor = Math.max(MIN_SPEED, Math.min(MAX_SPEED, speedFactor));
+        }
+        speed = speedFactor;
+    }
+
+    /**
+     * Converts a string into a speed factor.
+     * @param s a number, or "max" for AS_FAST_AS_POSSIBLE
+     * @return the speed factor
+     * @throws NumberFormatException if the string is not valid
+     */
+    public static double parseSpeed(String s)
+    {
+        s = s.trim();
+        if( s.compareToIgnoreCase("max")==0 )
+        {
+            return AS_FAST_AS_POSSIBLE;
+        }
+        if( s.endsWith("x") || s.endsWith("X") )
+        {
+            s = s.substring(0, s.length()-1);
+        }
+        return Double.parseDouble(s);
+    }
+
+    /**
+     * Returns the number of requests replayed since the link was started.
+     * @return the number of replayed requests
+     */
+    public int getReplayedCount()
+    {
+        return replayedCount;
     }
 
     @Override
@@ -57,15 +122,6 @@ implements ModbusLink, Runnable
     {
         executeThread = false;
         serverThread.interrupt();
-        
-       /* try
-        {
-            input.close();
-        } 
-        catch (IOException ex)
-        {
-            Logger.getLogger(ModbusReplayLink.class.getName()).log(Level.SEVERE, null, ex);
-        }*/
 
         try
         {
@@ -85,72 +141,71 @@ implements ModbusLink, Runnable
     {
         System.out.println("Start ModbusReplayLink");
 
-        BufferedReader input = null;
+        ModbusPalRecording recording = null;
         try
         {
-            FileReader reader = new FileReader(recordFile);
-            input = new BufferedReader(reader);
+            recording = ModbusPalRecording.load(recordFile);
         }
-        catch(FileNotFoundException ex)
+        catch(IOException ex)
         {
             Logger.getLogger(ModbusReplayLink.class.getName()).log(Level.SEVERE, null, ex);
+            executeThread = false;
+        }
+
+        if( recording != null )
+        {
+            replay(recording);
         }
 
-        long prev_timestamp = 0;
+        System.out.println("Stop ModbusReplayLink");
+        listener.linkBroken();
+        listener = null;
+    }
 
-        while(executeThread == true)
+    private void replay(ModbusPalRecording recording)
+    {
+        byte buffer[] = new byte[256];
+        int count = recording.getCount();
+        long start = System.nanoTime();
+        long lag = 0;
+        int i;
+
+        for( i=0; (i<count) && (executeThread==true); i++ )
         {
-            try
+            // wait until the request is due:
+            if( speed != AS_FAST_AS_POSSIBLE )
             {
-                String line = input.readLine();
-
-                // if some data is available then parse it:
-                if( line==null )
+                long due = start + (long)( (recording.getTimestamp(i)-recording.getTimestamp(0)) / speed );
+                long delay = due - System.nanoTime();
+                while( (delay>0) && (executeThread==true) )
                 {
-                    executeThread = false;
-                }
-                else
-                {
-                    ModbusPalRecord record = new ModbusPalRecord(line);
-
-                    if( record.getType()==ModbusPalRecord.RECORD_IN )
-                    {
-                        long timestamp = record.getTimestamp();
-                        System.out.println("sleep "+(timestamp-prev_timestamp)+" ms");
-                        if( prev_timestamp != 0 )
-                        {
-                            Thread.sleep( timestamp - prev_timestamp );
-                        }
-                        prev_timestamp = timestamp;
-
-                        ModbusSlaveAddress slaveId = record.getSlaveID();
-                        byte[] data = record.getData();
-                        int pduLength = processPDU(slaveId, data, 0, record.getDataLength() );
-                    }
+                    LockSupport.parkNanos(delay);
+                    delay = due - System.nanoTime();
                 }
+                lag = Math.max(lag, -delay);
             }
-            catch (Exception ex)
+
+            if( executeThread == true )
             {
-                if( Thread.interrupted() == false )
+                try
+                {
+                    int pduLength = recording.getData(i, buffer, 0);
+                    // nobody waits for the reply, so the reply delay of
+                    // the slave must not slow down the replay:
+                    processPDUWithoutDelay(recording.getSlaveID(i), buffer, 0, pduLength);
+                }
+                catch (Exception ex)
                 {
                     Logger.getLogger(ModbusReplayLink.class.getName()).log(Level.SEVERE, null, ex);
                 }
+                replayedCount = i+1;
             }
         }
 
-        try
-        {
-            // close the file reader
-            input.close();
-        }
-        catch (IOException ex)
-        {
-            Logger.getLogger(ModbusReplayLink.class.getName()).log(Level.SEVERE, null, ex);
-        }
-        
-        System.out.println("Stop ModbusReplayLink");
-        listener.linkBroken();
-        listener = null;
+        // report the achieved throughput:
+        long elapsed = Math.max(1, System.nanoTime() - start);
+        System.out.println( String.format("Replayed %d of %d requests in %d ms: %.0f requests/s, max lag %d ms",
+                replayedCount, count, elapsed/1000000, replayedCount*1e9/elapsed, lag/1000000) );
     }
 
 
@@ -12,6 +12,7 @@ import java.io.File;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.TooManyListenersException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -351,31 +352,41 @@ implements ModbusLink, Runnable, SerialPortEventListener
         }
     }
 
-    static int computeCRC(byte[] buffer, int offset, int length)
+    /**
+     * Adds the slave address and the CRC to the reply, then writes it
+     * into the serial port.
+     * @param buffer the buffer that contains the reply, starting at offset 1
+     * @param pduLength the length of the reply. if less than 1, nothing is sent.
+     */
+    private void sendReply(byte buffer[], int pduLength)
     {
-        // Load a 16–bit register with FFFF hex (all 1’s). This is the CRC
-        // register.
-        int CRC = 0xFFFF;
-
-        for( int i=0; i<length; i++ )
+        // if the output pdu length is positive, then send the content
+        // of the buffer
+        if( pduLength > 0 )
         {
-            // Exclusive OR the first 8–bit byte of the message with the
-            // low–order byte of the 16–bit CRC register, putting the result
-            // in the CRC register.
-            int b = buffer[offset+i] & 0xFF;
-            CRC = (CRC ^ b) & 0xFFFF;
-            
-            for( int j=0; j<8; j++ )
+            int totalLen = 1+ pduLength + 2; // 1 for slave address, and 2 for CRC
+
+            // compute crc of outgoing reply
+            int outputCRC = ModbusTools.computeCRC16(buffer,0,totalLen-2);
+
+            // low order byte of the CRC must be transmitted first
+            buffer[totalLen-2] = (byte)(outputCRC & 0xFF);
+            buffer[totalLen-1] = (byte)((outputCRC>>8) & 0xFF);
+
+            // write content of buffer into the output stream
+            try
             {
-                int LSB = CRC & 1;
-                CRC = (CRC >> 1) ;
-                if( LSB==1 )
+                synchronized(output)
                 {
-                    CRC = (CRC ^ 0xA001) & 0xFFFF;
+                    output.write(buffer, 0, totalLen);
+                    output.flush();
                 }
             }
+            catch (IOException ex)
+            {
+                Logger.getLogger(ModbusSerialLink.class.getName()).log(Level.SEVERE, null, ex);
+            }
         }
-        return CRC;
     }
 
     @Override
@@ -410,7 +421,7 @@ implements ModbusLink, Runnable, SerialPortEventListener
                     int receivedCRC = crcMSB * 256 + crcLSB;
 
                     // compute crc between slave address (included) and crc (excluded)
-                    int computedCRC = computeCRC(buffer,0,totalLen-2);
+                    int computedCRC = ModbusTools.computeCRC16(buffer,0,totalLen-2);
 
                     int pduLength = totalLen - 3; // 1 for slave address, and 2 for CRC
 
@@ -418,31 +429,24 @@ implements ModbusLink, Runnable, SerialPortEventListener
                     if( receivedCRC == computedCRC )
                     {
                         //System.out.println("read "+ totalLen + " bytes");
-                        pduLength = processPDU(new ModbusSlaveAddress(slaveID), buffer, 1, pduLength);
+                        // the reply may be sent after the next request has
+                        // been received, so it needs its own buffer:
+                        final byte frame[] = Arrays.copyOf(buffer, buffer.length);
+                        processPDU(new ModbusSlaveAddress(slaveID), frame, 1, pduLength, new ReplyHandler()
+                        {
+                            @Override
+                            public void replyReady(int length)
+                            {
+                                sendReply(frame, length);
+                            }
+                        });
                     }
 
                     else
                     {
                         // handle CRC error with exception code
                         pduLength = makeExceptionResponse(XC_SLAVE_DEVICE_FAILURE, buffer, 1);
-                    }
-
-                    // if the output pdu length is positive, then send the content
-                    // of the buffer
-                    if( pduLength > 0 )
-                    {
-                        totalLen = 1+ pduLength + 2; // 1 for slave address, and 2 for CRC
-
-                        // compute crc of outgoing reply
-                        int outputCRC = computeCRC(buffer,0,totalLen-2);
-
-                        // low order byte of the CRC must be transmitted first
-                        buffer[totalLen-2] = (byte)(outputCRC & 0xFF);
-                        buffer[totalLen-1] = (byte)((outputCRC>>8) & 0xFF);
-
-                        // write content of buffer into the output stream
-                        output.write(buffer, 0, totalLen);
-                        output.flush();
+                        sendReply(buffer, pduLength);
                     }
                 }
             }
@@ -515,8 +519,17 @@ implements ModbusLink, Runnable, SerialPortEventListener
         serialPort.close();
     }
 
+    /**
+     * Sends a request to a slave and processes its reply. All the slaves
+     * share the same serial line, so the requests are sent one at a time,
+     * even if several threads call this method.
+     * @param dst the slave to send the request to
+     * @param req the request
+     * @param timeout the maximum time to wait for the reply, in milliseconds
+     * @throws IOException
+     */
     @Override
-    public void execute(ModbusSlaveAddress dst, ModbusMasterRequest req, int timeout)
+    public synchronized void execute(ModbusSlaveAddress dst, ModbusMasterRequest req, int timeout)
     throws IOException
     {
         byte buffer[] = new byte[2048];
@@ -530,7 +543,7 @@ implements ModbusLink, Runnable, SerialPortEventListener
         
         // compute CRC
         int totalLen = 1+ length + 2; // 1 for slave address, and 2 for CRC
-        int outputCRC = computeCRC(buffer,0,totalLen-2);
+        int outputCRC = ModbusTools.computeCRC16(buffer,0,totalLen-2);
         buffer[totalLen-2] = (byte)(outputCRC & 0xFF);
         buffer[totalLen-1] = (byte)((outputCRC>>8) & 0xFF);
                 
@@ -566,7 +579,7 @@ implements ModbusLink, Runnable, SerialPortEventListener
             int receivedCRC = crcMSB * 256 + crcLSB;
 
             // compute crc between slave address (included) and crc (excluded)
-            int computedCRC = computeCRC(buffer,0,totalLen-2);
+            int computedCRC = ModbusTools.computeCRC16(buffer,0,totalLen-2);
 
             int pduLength = totalLen - 3; // 1 for slave address, and 2 for CRC
 
@@ -5,8 +5,9 @@
 
 package modbuspal.link;
 
-import java.util.logging.Level;
-import java.util.logging.Logger;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import modbuspal.main.*;
 import modbuspal.main.ModbusConst;
 import static modbuspal.main.ModbusConst.XC_ILLEGAL_FUNCTION;
@@ -15,6 +16,7 @@ import modbuspal.recorder.ModbusPalRecorder;
 import modbuspal.slave.ModbusPduProcessor;
 import modbuspal.slave.ModbusSlave;
 import modbuspal.slave.ModbusSlaveAddress;
+import modbuspal.toolkit.ThreadTools;
 
 
 /**
@@ -39,18 +41,122 @@ implements ModbusConst
         modbusPalProject = mpp;
     }
 
+    /**
+     * Receives the reply of a request processed by
+     * processPDU(ModbusSlaveAddress, byte[], int, int, ReplyHandler).
+     */
+    protected interface ReplyHandler
+    {
+        /**
+         * Called when the reply is ready to be sent. If the slave has no
+         * reply delay, this method is called by the thread that invoked
+         * processPDU(); otherwise, it is called by the reply scheduler and
+         * must return quickly.
+         * @param pduLength the size of the reply. if less than 1, modbuspal
+         * considers that there is no reply to the request.
+         */
+        void replyReady(int pduLength);
+    }
+
+    private static ScheduledExecutorService replyScheduler = null;
+
+    /**
+     * Returns the scheduler that completes the replies of the slaves that
+     * have a reply delay. A single thread is shared by all the links.
+     * @return the reply scheduler
+     */
+    protected static synchronized ScheduledExecutorService getReplyScheduler()
+    {
+        if( replyScheduler == null )
+        {
+            replyScheduler = Executors.newSingleThreadScheduledExecutor( ThreadTools.newThreadFactory("reply scheduler") );
+        }
+        return replyScheduler;
+    }
+
+    /**
+     * The subclass will call this method in order to process the content of
+     * the PDU that has been received from the master, without waiting for
+     * the reply delay of the slave. The request is processed immediately, but
+     * the handler is notified only when the reply delay has expired; in the
+     * meantime, the calling thread is free to process other requests.
+     * The reply is written in the same buffer where the request was
+     * transmitted, so the buffer must not be reused before the handler is
+     * notified.
+     * @param slaveID the slave identifier of the target MODBUS device
+     * @param buffer a byte buffer containing the MODBUS PDU
+     * @param offset the offset in the buffer where the PDU actually starts
+     * @param pduLength the length of the PDU.
+     * @param handler notified when the reply can be sent
+     */
+    protected void processPDU(final ModbusSlaveAddress slaveID, final byte[] buffer, final int offset, int pduLength, final ReplyHandler handler)
+    {
+        final int length = processRequest(slaveID, buffer, offset, pduLength);
+        long delay = 0;
+        if( length > 0 )
+        {
+            delay = getReplyDelay(slaveID);
+        }
+
+        if( delay <= 0 )
+        {
+            if( length > 0 )
+            {
+                ModbusPalRecorder.recordOutgoing(slaveID,buffer,offset,length);
+            }
+            handler.replyReady(length);
+            return;
+        }
+
+        getReplyScheduler().schedule( new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                ModbusPalRecorder.recordOutgoing(slaveID,buffer,offset,length);
+                handler.replyReady(length);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
     /**
      * The subclass will call this method in order to process the content of
-     * the PDU that has been received from the master.
-     * The reply is written in the same buffer where the request was transmitted.
-     * @param slaveID the slave identifier of the target MODBUS device 
+     * the PDU, ignoring the reply delay of the slave. This is used when
+     * there is no master waiting for the reply, e.g. when a recording is
+     * replayed. The reply is written in the same buffer where the request
+     * was transmitted, and is recorded.
+     * @param slaveID the slave identifier of the target MODBUS device
      * @param buffer a byte buffer containing the MODBUS PDU
      * @param offset the offset in the buffer where the PDU actually starts
      * @param pduLength the length of the PDU.
      * @return the size of the reply. if less than 1, modbuspal considers that
      * there is no reply to the request.
      */
-    protected int processPDU(ModbusSlaveAddress slaveID, byte[] buffer, int offset, int pduLength)
+    protected int processPDUWithoutDelay(ModbusSlaveAddress slaveID, byte[] buffer, int offset, int pduLength)
+    {
+        int length = processRequest(slaveID, buffer, offset, pduLength);
+        if( length > 0 )
+        {
+            ModbusPalRecorder.recordOutgoing(slaveID,buffer,offset,length);
+        }
+        return length;
+    }
+
+    private long getReplyDelay(ModbusSlaveAddress slaveID)
+    {
+        ModbusSlave slave = modbusPalProject.getModbusSlave(slaveID);
+        if( slave == null )
+        {
+            return 0;
+        }
+        return slave.getReplyDelay();
+    }
+
+    /**
+     * Processes the request and writes the reply in the buffer; the reply
+     * delay is not applied and the reply is not recorded.
+     */
+    private int processRequest(ModbusSlaveAddress slaveID, byte[] buffer, int offset, int pduLength)
     {
         // record the request
         ModbusPalRecorder.recordIncoming(slaveID,buffer,offset,pduLength);
@@ -80,7 +186,6 @@ implements ModbusConst
         {
             System.err.println("Unsupported function code "+functionCode);
             int length = makeExceptionResponse(functionCode,XC_ILLEGAL_FUNCTION, buffer, offset);
-            ModbusPalRecorder.recordOutgoing(slaveID,buffer,offset,length);
             modbusPalProject.notifyExceptionResponse();
             return length;
         }
@@ -101,14 +206,6 @@ implements ModbusConst
             modbusPalProject.notifyPDUprocessed();
         }
 
-        // delay the reply
-        try {
-            Thread.sleep(slave.getReplyDelay());
-        } catch (InterruptedException ex) {
-            Logger.getLogger(ModbusSlaveProcessor.class.getName()).log(Level.SEVERE, null, ex);
-        }
-
-        ModbusPalRecorder.recordOutgoing(slaveID,buffer,offset,length);
         return length;
     }
 
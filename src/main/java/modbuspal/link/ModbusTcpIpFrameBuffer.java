@@ -0,0 +1,209 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package modbuspal.link;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import modbuspal.toolkit.ModbusTools;
+
+/**
+ * Reassembles the MBAP frames received on a tcp/ip connection. The bytes
+ * read from the socket are accumulated in a ring buffer, regardless of the
+ * way TCP segmented them, and the complete frames are then extracted one by
+ * one. Several pipelined frames can be received in a single read; a frame
+ * can also be split across several reads. The ring buffer is allocated once
+ * per connection, so that no allocation occurs when requests are received.
+ * @author nnovic
+ */
+class ModbusTcpIpFrameBuffer
+{
+    /** size of the MBAP header, unit identifier included */
+    static final int MBAP_HEADER_LENGTH = 7;
+
+    /** maximum size of a MBAP frame: header + 253 bytes of PDU */
+    static final int MAX_FRAME_LENGTH = MBAP_HEADER_LENGTH + 253;
+
+    /** default capacity of the ring buffer, must be a power of two */
+    static final int DEFAULT_CAPACITY = 4096;
+
+    private final byte data[];
+    private final int mask;
+    private final ByteBuffer view;
+    private long readPosition = 0;
+    private long writePosition = 0;
+
+    /**
+     * Creates a new frame buffer with the default capacity.
+     */
+    ModbusTcpIpFrameBuffer()
+    {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Creates a new frame buffer.
+     * @param capacity size of the ring buffer. must be a power of two, and
+     * at least twice as large as MAX_FRAME_LENGTH.
+     */
+    ModbusTcpIpFrameBuffer(int capacity)
+    {
+        if( (Integer.bitCount(capacity)!=1) || (capacity<2*MAX_FRAME_LENGTH) )
+        {
+            throw new IllegalArgumentException("invalid capacity: "+capacity);
+        }
+        data = new byte[capacity];
+        mask = capacity - 1;
+        view = ByteBuffer.wrap(data);
+    }
+
+    /**
+     * Returns the number of bytes received and not yet extracted as frames.
+     * @return number of pending bytes
+     */
+    int available()
+    {
+        return (int)(writePosition - readPosition);
+    }
+
+    /**
+     * Discards all the pending bytes.
+     */
+    void clear()
+    {
+        readPosition = writePosition;
+    }
+
+    /**
+     * Returns the number of bytes that can be written in the ring buffer
+     * without wrapping around.
+     */
+    private int contiguousFreeSpace()
+    throws IOException
+    {
+        int free = data.length - available();
+        if( free == 0 )
+        {
+            throw new IOException("frame buffer overflow");
+        }
+        int index = (int)(writePosition & mask);
+        return Math.min(free, data.length - index);
+    }
+
+    /**
+     * Reads bytes from the input stream into the ring buffer. This method
+     * blocks until at least one byte is available.
+     * @param in the input stream of the connection
+     * @return the number of bytes read, or -1 if the end of the stream has
+     * been reached.
+     * @throws IOException
+     */
+    int fill(InputStream in)
+    throws IOException
+    {
+        int length = contiguousFreeSpace();
+        int recv = in.read(data, (int)(writePosition & mask), length);
+        if( recv > 0 )
+        {
+            writePosition += recv;
+        }
+        return recv;
+    }
+
+    /**
+     * Reads bytes from the channel into the ring buffer. If the channel is
+     * in non-blocking mode, this method may read zero bytes.
+     * @param channel the channel of the connection
+     * @return the number of bytes read, or -1 if the end of the stream has
+     * been reached.
+     * @throws IOException
+     */
+    int fill(ReadableByteChannel channel)
+    throws IOException
+    {
+        int length = contiguousFreeSpace();
+        int index = (int)(writePosition & mask);
+        view.clear();
+        view.position(index);
+        view.limit(index+length);
+        int recv = channel.read(view);
+        if( recv > 0 )
+        {
+            writePosition += recv;
+        }
+        return recv;
+    }
+
+    private int getUint16(int offset)
+    {
+        int hi = data[ (int)((readPosition+offset) & mask) ] & 0xFF;
+        int lo = data[ (int)((readPosition+offset+1) & mask) ] & 0xFF;
+        return (hi<<8) | lo;
+    }
+
+    /**
+     * Extracts the next complete MBAP frame, if any. The frame is copied
+     * into dst, at offset 0, so that it can be processed in place; dst must
+     * be large enough to hold a frame of MAX_FRAME_LENGTH bytes.
+     * @param dst the buffer that will receive the frame
+     * @return the length of the frame, MBAP header included, or 0 if no
+     * complete frame is available yet.
+     * @throws IOException if the MBAP header is invalid. In that case, the
+     * stream cannot be resynchronized and the connection should be closed.
+     */
+    int nextFrame(byte dst[])
+    throws IOException
+    {
+        if( available() < MBAP_HEADER_LENGTH )
+        {
+            return 0;
+        }
+
+        int protocolIdentifier = getUint16(2);
+        int length = getUint16(4);
+        if( (protocolIdentifier!=0) || (length<2) || (length>MAX_FRAME_LENGTH-6) )
+        {
+            throw new IOException("invalid MBAP header: pID="+protocolIdentifier+" L="+length);
+        }
+
+        int frameLength = 6 + length;
+        if( available() < frameLength )
+        {
+            return 0;
+        }
+
+        int index = (int)(readPosition & mask);
+        int first = Math.min(frameLength, data.length-index);
+        System.arraycopy(data, index, dst, 0, first);
+        if( first < frameLength )
+        {
+            System.arraycopy(data, 0, dst, first, frameLength-first);
+        }
+        readPosition += frameLength;
+        return frameLength;
+    }
+
+    /**
+     * Returns the unit identifier of a frame extracted by nextFrame().
+     * @param frame the frame
+     * @return the unit identifier
+     */
+    static int getUnitIdentifier(byte frame[])
+    {
+        return ModbusTools.getUint8(frame,6);
+    }
+
+    /**
+     * Returns the length of the PDU of a frame extracted by nextFrame().
+     * @param frame the frame
+     * @return the length of the PDU
+     */
+    static int getPduLength(byte frame[])
+    {
+        return ModbusTools.getUint16(frame,4) - 1;
+    }
+}
@@ -6,6 +6,7 @@
 package modbuspal.link;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.util.HashMap;
@@ -24,13 +25,41 @@ public class ModbusTcpIpLink
 extends ModbusSlaveProcessor
 implements ModbusLink, Runnable
 {
+    /** 
+     * name of the system property that selects the non-blocking server mode.
+     * When set to "true", create() returns a ModbusTcpIpNioLink.
+     */
+    public static final String NIO_PROPERTY = "modbuspal.tcp.nio";
+    
+    /**
+     * Creates the tcp/ip link that suits the current configuration: the
+     * selector-based ModbusTcpIpNioLink if the "modbuspal.tcp.nio" system 
+     * property is true, the thread-per-connection ModbusTcpIpLink otherwise.
+     * @param mpp the modbuspal project that holds MODBUS slaves information
+     * @param port the TCP port to listen to for incoming connections
+     * @return a new tcp/ip link
+     * @throws IOException 
+     */
+    public static ModbusTcpIpLink create(ModbusPalProject mpp, int port)
+    throws IOException
+    {
+        if( Boolean.getBoolean(NIO_PROPERTY)==true )
+        {
+            return new ModbusTcpIpNioLink(mpp, port);
+        }
+        return new ModbusTcpIpLink(mpp, port);
+    }
+    
     private ServerSocket serverSocket;
     private Thread serverThread;
     private boolean executeThread;
-    private ModbusLinkListener listener = null;
+    /** the listener that is notified when the link gets broken. */
+    protected ModbusLinkListener listener = null;
     private final ModbusPalProject modbusPalProject;
-    private HashMap<ModbusSlaveAddress, Socket> clientSockets;
-    private int tcpPort;
+    private HashMap<ModbusSlaveAddress, Socket> clientSockets; // synchronized
+    
+    /** the TCP port to listen to (slave) or to connect to (master). */
+    protected final int tcpPort;
     
     /** Transcation identifier for the master's requests.  */
     private int clientTI;
@@ -51,6 +80,7 @@ implements ModbusLink, Runnable
 
     @Override
     public void start(ModbusLinkListener l)
+    throws IOException
     {
         executeThread = true;
         serverThread = new Thread(this,"tcp/ip link");
@@ -144,58 +174,100 @@ implements ModbusLink, Runnable
     @Override
     public void stopMaster()
     {
-        for(Socket sock : clientSockets.values() )
+        synchronized(clientSockets)
         {
-            if(sock != null )
+            for(Socket sock : clientSockets.values() )
             {
-                try
-                {
-                    sock.close();
-                }
-                catch (IOException ex) 
+                if(sock != null )
                 {
-                    Logger.getLogger(ModbusTcpIpLink.class.getName()).log(Level.SEVERE, null, ex);
+                    try
+                    {
+                        sock.close();
+                    }
+                    catch (IOException ex) 
+                    {
+                        Logger.getLogger(ModbusTcpIpLink.class.getName()).log(Level.SEVERE, null, ex);
+                    }
                 }
             }
+
+            clientSockets.clear();
         }
-        
-        clientSockets.clear();
     }
     
 
+    /**
+     * Sends a request to a slave and processes its reply. Can be called by
+     * several threads at the same time: each slave has its own connection,
+     * and the requests sent to the same slave are serialized.
+     * @param dst the slave to send the request to
+     * @param req the request
+     * @param timeout the maximum time to wait for the connection and for
+     * the reply, in milliseconds
+     * @throws IOException if the slave cannot be reached. The connection is
+     * closed, and will be opened again by the next request.
+     */
     @Override
     public void execute(ModbusSlaveAddress dst, ModbusMasterRequest req, int timeout)
     throws IOException
     {
         // did I already open a connection for this slave ?
-        Socket sock = clientSockets.get(dst);
-        if( sock == null )
+        Socket sock;
+        synchronized(clientSockets)
         {
-            sock = new Socket(dst.getIpAddress(), tcpPort);
-            clientSockets.put(dst, sock);
+            sock = clientSockets.get(dst);
+            if( sock == null )
+            {
+                sock = new Socket();
+                clientSockets.put(dst, sock);
+            }
+        }
+
+        synchronized(sock)
+        {
+            try
+            {
+                if( sock.isConnected()==false )
+                {
+                    sock.connect( new InetSocketAddress(dst.getIpAddress(), tcpPort), timeout );
+                }
+
+                byte buffer[] = new byte[2048];
+
+                // genete PDU of the request, start at offset 7
+                // (leave room for MBAP header).
+                int length = buildPDU(req, dst, buffer, 7);
+
+                // create MBAP header for the request
+                ModbusTools.setUint16(buffer, 0, clientTI); // transaction identifier on 2 bytes
+                ModbusTools.setUint16(buffer, 2, 0); // protocol identifier on 2 bytes
+                ModbusTools.setUint16(buffer, 4, 1+length); //1 + PDU length
+                ModbusTools.setUint8(buffer, 6, dst.getRtuAddress());
+
+                // send request 
+                sock.getOutputStream().write(buffer, 0, 7+length);
+
+                sock.setSoTimeout(timeout);
+
+                // wait for reply
+                int recv = sock.getInputStream().read(buffer);
+
+                // rip MBAP header off
+                processPDU(req, dst, buffer, 7, recv);
+            }
+            catch(IOException ex)
+            {
+                // forget the broken connection:
+                synchronized(clientSockets)
+                {
+                    if( clientSockets.get(dst)==sock )
+                    {
+                        clientSockets.remove(dst);
+                    }
+                }
+                sock.close();
+                throw ex;
+            }
         }
-        
-        byte buffer[] = new byte[2048];
-        
-        // genete PDU of the request, start at offset 7
-        // (leave room for MBAP header).
-        int length = buildPDU(req, dst, buffer, 7);
-        
-        // create MBAP header for the request
-        ModbusTools.setUint16(buffer, 0, clientTI); // transaction identifier on 2 bytes
-        ModbusTools.setUint16(buffer, 2, 0); // protocol identifier on 2 bytes
-        ModbusTools.setUint16(buffer, 4, 1+length); //1 + PDU length
-        ModbusTools.setUint8(buffer, 6, dst.getRtuAddress());
-        
-        // send request 
-        sock.getOutputStream().write(buffer, 0, 7+length);
-        
-        sock.setSoTimeout(timeout);
-        
-        // wait for reply
-        int recv = sock.getInputStream().read(buffer);
-        
-        // rip MBAP header off
-        processPDU(req, dst, buffer, 7, recv);
     }
 }
@@ -0,0 +1,373 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package modbuspal.link;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import modbuspal.main.ModbusPalProject;
+import modbuspal.toolkit.ThreadTools;
+
+/**
+ * Non-blocking variant of the ModbusTcpIpLink. A single thread runs a
+ * Selector that accepts the incoming connections and reads the MBAP frames;
+ * the decoded requests are processed by a small pool of worker threads. The
+ * number of connections is therefore independent of the number of threads.
+ * The master mode is inherited, unchanged, from ModbusTcpIpLink.
+ * @author nnovic
+ */
+public class ModbusTcpIpNioLink
+extends ModbusTcpIpLink
+{
+    /**
+     * Holds the state of a client connection: the bytes received so far,
+     * the transactions in progress and the replies waiting to be sent.
+     */
+    private class Connection
+    implements ModbusTcpIpPipeline.Sink
+    {
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private final InetAddress remoteAddress;
+        private final ModbusTcpIpFrameBuffer input = new ModbusTcpIpFrameBuffer();
+        private final ModbusTcpIpPipeline pipeline;
+        private final ConcurrentLinkedQueue<ByteBuffer> replies = new ConcurrentLinkedQueue<ByteBuffer>();
+
+        Connection(SocketChannel sc, SelectionKey sk)
+        {
+            channel = sc;
+            key = sk;
+            remoteAddress = sc.socket().getInetAddress();
+            pipeline = new ModbusTcpIpPipeline(ModbusTcpIpNioLink.this, remoteAddress, workers, this);
+        }
+
+        /**
+         * Called by the selector thread when data is available. Reads the
+         * channel and submits the complete MBAP frames to the pipeline.
+         * @return false if the connection has been closed by the peer or
+         * if the stream is corrupted.
+         * @throws IOException
+         */
+        boolean read()
+        throws IOException
+        {
+            if( input.fill(channel) == -1 )
+            {
+                return false;
+            }
+
+            boolean valid = true;
+            try
+            {
+                byte frame[] = pipeline.acquireFrame();
+                while( input.nextFrame(frame) > 0 )
+                {
+                    pipeline.submit(frame);
+                    frame = pipeline.acquireFrame();
+                }
+                pipeline.releaseFrame(frame);
+            }
+            catch(IOException ex)
+            {
+                System.err.println("ModbusTcpIpNioLink: "+ex.getMessage()+" from "+remoteAddress);
+                valid = false;
+            }
+
+            // stop reading when too many transactions are in progress
+            updateInterestOps();
+            return valid;
+        }
+
+        @Override
+        public void replyReady(byte[] frame, int length)
+        {
+            if( length > 0 )
+            {
+                replies.add( ByteBuffer.wrap(frame, 0, length) );
+            }
+            else
+            {
+                pipeline.releaseFrame(frame);
+            }
+
+            // even without reply, the selector thread may have to resume
+            // reading this connection:
+            pendingWrites.add(this);
+            selector.wakeup();
+        }
+
+        /**
+         * Called by the selector thread when the channel is writable, or when
+         * a worker has queued a reply.
+         * @throws IOException
+         */
+        void write()
+        throws IOException
+        {
+            ByteBuffer reply;
+            while( (reply=replies.peek()) != null )
+            {
+                channel.write(reply);
+                if( reply.hasRemaining()==true )
+                {
+                    // socket buffer is full, wait for OP_WRITE
+                    break;
+                }
+                replies.poll();
+                pipeline.releaseFrame( reply.array() );
+            }
+            updateInterestOps();
+        }
+
+        private void updateInterestOps()
+        {
+            int ops = 0;
+            if( pipeline.getInFlight() < ModbusTcpIpPipeline.MAX_IN_FLIGHT )
+            {
+                ops |= SelectionKey.OP_READ;
+            }
+            if( replies.isEmpty()==false )
+            {
+                ops |= SelectionKey.OP_WRITE;
+            }
+            key.interestOps(ops);
+        }
+
+        void close()
+        {
+            pipeline.close();
+            key.cancel();
+            try
+            {
+                channel.close();
+            }
+            catch (IOException ex)
+            {
+                Logger.getLogger(ModbusTcpIpNioLink.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+    }
+
+
+    private final int workerCount;
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private ExecutorService workers;
+    private Thread serverThread;
+    private volatile boolean executeThread;
+    private final ConcurrentLinkedQueue<Connection> pendingWrites = new ConcurrentLinkedQueue<Connection>();
+
+    /**
+     * Creates a new instance of ModbusTcpIpNioLink. The size of the worker
+     * pool is the number of available processors.
+     * @param mpp the modbuspal project that holds MODBUS slaves information
+     * @param port the TCP port to listen to for incoming connections
+     * @throws IOException
+     */
+    public ModbusTcpIpNioLink(ModbusPalProject mpp, int port)
+    throws IOException
+    {
+        this(mpp, port, Runtime.getRuntime().availableProcessors() );
+    }
+
+    /**
+     * Creates a new instance of ModbusTcpIpNioLink.
+     * @param mpp the modbuspal project that holds MODBUS slaves information
+     * @param port the TCP port to listen to for incoming connections
+     * @param workers number of threads that will process the requests
+     * @throws IOException
+     */
+    public ModbusTcpIpNioLink(ModbusPalProject mpp, int port, int workers)
+    throws IOException
+    {
+        super(mpp, port);
+        workerCount = Math.max(1, workers);
+    }
+
+    @Override
+    public void start(ModbusLinkListener l)
+    throws IOException
+    {
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.configureBlocking(false);
+        serverChannel.bind( new InetSocketAddress(tcpPort) );
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+        workers = Executors.newFixedThreadPool(workerCount, ThreadTools.newThreadFactory("tcp/ip worker"));
+
+        executeThread = true;
+        listener = l;
+        serverThread = new Thread(this,"tcp/ip nio link");
+        serverThread.start();
+    }
+
+    @Override
+    public void stop()
+    {
+        executeThread = false;
+        selector.wakeup();
+
+        try
+        {
+            serverThread.join();
+        }
+        catch (InterruptedException ex)
+        {
+            Logger.getLogger(ModbusTcpIpNioLink.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        serverThread = null;
+
+        workers.shutdownNow();
+        try
+        {
+            workers.awaitTermination(1, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException ex)
+        {
+            Logger.getLogger(ModbusTcpIpNioLink.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        workers = null;
+    }
+
+    @Override
+    public void run()
+    {
+        System.out.println("Start ModbusTcpIpNioLink");
+
+        while( executeThread == true )
+        {
+            try
+            {
+                selector.select();
+
+                // enable writing for the connections that have pending replies
+                Connection pending;
+                while( (pending=pendingWrites.poll()) != null )
+                {
+                    if( pending.key.isValid()==true )
+                    {
+                        pending.write();
+                    }
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while( keys.hasNext() )
+                {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    handle(key);
+                }
+            }
+            catch (IOException ex)
+            {
+                Logger.getLogger(ModbusTcpIpNioLink.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+
+        closeAll();
+
+        System.out.println("Stop ModbusTcpIpNioLink");
+        listener.linkBroken();
+        listener = null;
+    }
+
+    private void handle(SelectionKey key)
+    {
+        if( key.isValid()==false )
+        {
+            return;
+        }
+
+        if( key.isAcceptable()==true )
+        {
+            accept();
+            return;
+        }
+
+        Connection conn = (Connection)key.attachment();
+        try
+        {
+            if( (key.isReadable()==true) && (conn.read()==false) )
+            {
+                conn.close();
+                return;
+            }
+            if( (key.isValid()==true) && (key.isWritable()==true) )
+            {
+                conn.write();
+            }
+        }
+        catch(IOException ex)
+        {
+            System.err.println("ModbusTcpIpNioLink exception " +ex.getMessage() );
+            conn.close();
+        }
+    }
+
+    private void accept()
+    {
+        try
+        {
+            SocketChannel sc = serverChannel.accept();
+            if( sc == null )
+            {
+                return;
+            }
+            sc.configureBlocking(false);
+            sc.socket().setTcpNoDelay(true);
+            SelectionKey sk = sc.register(selector, SelectionKey.OP_READ);
+            sk.attach( new Connection(sc, sk) );
+        }
+        catch (IOException ex)
+        {
+            Logger.getLogger(ModbusTcpIpNioLink.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
+    private void closeAll()
+    {
+        for( SelectionKey key : selector.keys() )
+        {
+            Object attachment = key.attachment();
+            if( attachment instanceof Connection )
+            {
+                ((Connection)attachment).close();
+            }
+        }
+
+        try
+        {
+            serverChannel.close();
+        }
+        catch (IOException ex)
+        {
+            Logger.getLogger(ModbusTcpIpNioLink.class.getName()).log(Level.SEVERE, null, ex);
+        }
+
+        try
+        {
+            selector.close();
+        }
+        catch (IOException ex)
+        {
+            Logger.getLogger(ModbusTcpIpNioLink.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        pendingWrites.clear();
+    }
+}
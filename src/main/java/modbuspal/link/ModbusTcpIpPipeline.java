@@ -0,0 +1,278 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package modbuspal.link;
+
+import java.net.InetAddress;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import modbuspal.slave.ModbusSlaveAddress;
+import modbuspal.toolkit.ModbusTools;
+import modbuspal.toolkit.ThreadTools;
+
+/**
+ * Processes the MBAP frames received on a tcp/ip connection, allowing the
+ * master to have several transactions in progress at the same time. The
+ * requests are dispatched into one lane per unit identifier: the requests
+ * of a lane are processed in the order they were received, but the lanes
+ * are processed concurrently by the threads of an executor. As a
+ * consequence, the replies of different unit identifiers may be sent in a
+ * different order than the requests; each reply keeps the transaction
+ * identifier of its request.
+ * @author nnovic
+ */
+class ModbusTcpIpPipeline
+{
+    /** name of the system property that sets the maximum number of
+     * transactions in progress on a single connection */
+    static final String MAX_IN_FLIGHT_PROPERTY = "modbuspal.tcp.inflight";
+
+    /** maximum number of transactions in progress on a single connection */
+    static final int MAX_IN_FLIGHT = Math.max(1, Integer.getInteger(MAX_IN_FLIGHT_PROPERTY, 32) );
+
+    /**
+     * Receives the frames once they have been processed.
+     */
+    interface Sink
+    {
+        /**
+         * Called by a worker thread when a frame has been processed. The
+         * implementation is responsible for sending the reply, then
+         * releasing the frame with releaseFrame().
+         * @param frame the frame, that now contains the reply
+         * @param length length of the reply, MBAP header included, or 0 if
+         * no reply must be sent.
+         */
+        void replyReady(byte frame[], int length);
+    }
+
+    /**
+     * Holds the requests of a given unit identifier. A lane processes one
+     * request at a time; when the slave has a reply delay, the lane is
+     * suspended until the reply scheduler completes the request, without
+     * holding a thread of the executor.
+     */
+    private class Lane
+    implements Runnable, ModbusSlaveProcessor.ReplyHandler
+    {
+        private static final int PROCESSING = 0;
+        private static final int COMPLETED = 1;
+        private static final int DEFERRED = 2;
+
+        private final ModbusSlaveAddress address;
+        private final ConcurrentLinkedQueue<byte[]> frames = new ConcurrentLinkedQueue<byte[]>();
+        private final AtomicInteger state = new AtomicInteger(COMPLETED);
+        private boolean busy = false;
+        private byte current[] = null;
+        private int currentLength = 0;
+
+        Lane(int uID)
+        {
+            address = new ModbusSlaveAddress(remoteAddress, uID);
+        }
+
+        void schedule()
+        {
+            synchronized(this)
+            {
+                if( (busy==true) || (frames.isEmpty()==true) )
+                {
+                    return;
+                }
+                busy = true;
+            }
+            executor.execute(this);
+        }
+
+        @Override
+        public void run()
+        {
+            // resumed after a delayed reply:
+            if( current != null )
+            {
+                finish();
+            }
+
+            byte frame[];
+            while( (frame=frames.poll()) != null )
+            {
+                current = frame;
+                state.set(PROCESSING);
+                if( closed == false )
+                {
+                    int pduLength = ModbusTcpIpFrameBuffer.getPduLength(frame);
+                    processor.processPDU(address, frame, ModbusTcpIpFrameBuffer.MBAP_HEADER_LENGTH, pduLength, this);
+                }
+                else
+                {
+                    replyReady(0);
+                }
+
+                if( state.compareAndSet(PROCESSING, DEFERRED)==true )
+                {
+                    // replyReady() will resume the lane
+                    return;
+                }
+                finish();
+            }
+
+            synchronized(this)
+            {
+                busy = false;
+            }
+
+            // a request may have been added after the last poll():
+            schedule();
+        }
+
+        @Override
+        public void replyReady(int pduLength)
+        {
+            currentLength = pduLength;
+            if( state.compareAndSet(PROCESSING, COMPLETED)==false )
+            {
+                // called by the reply scheduler: send the reply and process
+                // the next requests in a thread of the executor.
+                try
+                {
+                    executor.execute(this);
+                }
+                catch(RejectedExecutionException ex)
+                {
+                    // the link is being stopped
+                }
+            }
+        }
+
+        private void finish()
+        {
+            byte frame[] = current;
+            current = null;
+
+            int length = 0;
+            if( currentLength > 0 )
+            {
+                // change length in MBAP
+                ModbusTools.setUint16(frame,4,currentLength+1);
+                length = ModbusTcpIpFrameBuffer.MBAP_HEADER_LENGTH + currentLength;
+            }
+            inFlight.decrementAndGet();
+            sink.replyReady(frame, length);
+        }
+    }
+
+
+    private static ExecutorService sharedExecutor = null;
+
+    /**
+     * Returns the executor that is shared by all the connections of the
+     * blocking ModbusTcpIpLink.
+     * @return the shared executor
+     */
+    static synchronized Executor getSharedExecutor()
+    {
+        if( sharedExecutor == null )
+        {
+            sharedExecutor = ThreadTools.newExecutor("tcp/ip worker");
+        }
+        return sharedExecutor;
+    }
+
+
+    private final ModbusSlaveProcessor processor;
+    private final InetAddress remoteAddress;
+    private final Executor executor;
+    private final Sink sink;
+    private final Lane lanes[] = new Lane[256];
+    private final ConcurrentLinkedQueue<byte[]> freeFrames = new ConcurrentLinkedQueue<byte[]>();
+    private final AtomicInteger inFlight = new AtomicInteger(0);
+    private volatile boolean closed = false;
+
+    /**
+     * Creates a new pipeline for a connection.
+     * @param msp the processor that will interpret the PDUs
+     * @param remote address of the master
+     * @param exec the executor that runs the lanes
+     * @param s receives the replies
+     */
+    ModbusTcpIpPipeline(ModbusSlaveProcessor msp, InetAddress remote, Executor exec, Sink s)
+    {
+        processor = msp;
+        remoteAddress = remote;
+        executor = exec;
+        sink = s;
+    }
+
+    /**
+     * Returns a buffer that can hold a frame. The buffers are recycled by
+     * releaseFrame(), so that no allocation occurs once the connection is
+     * established.
+     * @return a buffer of MAX_FRAME_LENGTH bytes
+     */
+    byte[] acquireFrame()
+    {
+        byte frame[] = freeFrames.poll();
+        if( frame == null )
+        {
+            frame = new byte[ModbusTcpIpFrameBuffer.MAX_FRAME_LENGTH];
+        }
+        return frame;
+    }
+
+    /**
+     * Gives back a buffer obtained with acquireFrame().
+     * @param frame the buffer to recycle
+     */
+    void releaseFrame(byte frame[])
+    {
+        freeFrames.add(frame);
+    }
+
+    /**
+     * Queues a frame for processing. The frame must have been obtained with
+     * acquireFrame(), and must not be modified until it is passed to
+     * the sink.
+     * @param frame the complete MBAP frame
+     */
+    void submit(byte frame[])
+    {
+        int uID = ModbusTcpIpFrameBuffer.getUnitIdentifier(frame);
+        Lane lane;
+        synchronized(lanes)
+        {
+            lane = lanes[uID];
+            if( lane == null )
+            {
+                lane = new Lane(uID);
+                lanes[uID] = lane;
+            }
+        }
+        inFlight.incrementAndGet();
+        lane.frames.add(frame);
+        lane.schedule();
+    }
+
+    /**
+     * Returns the number of requests that have been submitted and whose
+     * reply has not been passed to the sink yet.
+     * @return the number of transactions in progress
+     */
+    int getInFlight()
+    {
+        return inFlight.get();
+    }
+
+    /**
+     * Stops processing the requests. The pending requests are passed to the
+     * sink without being processed.
+     */
+    void close()
+    {
+        closed = true;
+    }
+}
@@ -11,11 +11,11 @@ import java.io.OutputStream;
 import java.net.Socket;
 import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.concurrent.Semaphore;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import modbuspal.main.ModbusPalProject;
-import modbuspal.slave.ModbusSlaveAddress;
-import modbuspal.toolkit.ModbusTools;
+import modbuspal.toolkit.ThreadTools;
 
 /**
  * Processes an incoming tcp/ip connection received by the ModbusTcpIpLink
@@ -61,6 +61,8 @@ implements Runnable
     private Socket slaveSocket;
     private InputStream slaveInput;
     private OutputStream slaveOutput;
+    private ModbusTcpIpPipeline pipeline;
+    private final Semaphore transactions = new Semaphore(ModbusTcpIpPipeline.MAX_IN_FLIGHT);
 
     /**
      * Creates a new instance of ModbusTcpIpSlaveDispatcher
@@ -82,7 +84,7 @@ implements Runnable
      */
     public void start()
     {
-        slaveThread = new Thread(this,"tcp/ip dispatcher");
+        slaveThread = ThreadTools.newThread(this,"tcp/ip dispatcher");
         slaveThread.start();
     }
 
@@ -109,54 +111,50 @@ implements Runnable
         System.out.println("Start ModubsTcpIpSlaveDispatcher");
         register(this);
         
-        int recv = 0;
-        byte[] buffer = new byte[2048];
-
-        try
+        pipeline = new ModbusTcpIpPipeline(this, slaveSocket.getInetAddress(), ModbusTcpIpPipeline.getSharedExecutor(), new ModbusTcpIpPipeline.Sink()
         {
-            while( recv != -1 )
+            @Override
+            public void replyReady(byte[] frame, int length)
             {
-                // read MBAP header:
-                recv = slaveInput.read(buffer,0,7);
-                if( recv == -1 )
+                try
                 {
-                    continue;
+                    if( length > 0 )
+                    {
+                        // replies may be ready at the same time in several lanes:
+                        synchronized(slaveOutput)
+                        {
+                            slaveOutput.write(frame, 0, length);
+                            slaveOutput.flush();
+                        }
+                    }
                 }
-                else if( recv != 7 )
+                catch(IOException ex)
                 {
-                    throw new IOException();
+                    System.err.println("ModubsTcpIpSlaveDispatcher exception " +ex.getMessage() );
                 }
-
-                // interpret MBAP header:
-                int transactionIdentifier = ModbusTools.getUint16(buffer,0);
-                int protocolIdentifier = ModbusTools.getUint16(buffer,2);
-                int length = ModbusTools.getUint16(buffer,4);
-                int uID = ModbusTools.getUint8(buffer,6);
-                //System.out.println("tID="+transactionIdentifier+" pID="+protocolIdentifier+" L="+length+" uID="+uID);
-
-                // receive PDU
-                int pduLength = length - 1;
-                recv = slaveInput.read(buffer, 7, pduLength);
-                if( recv == -1 )
+                finally
                 {
-                    continue;
+                    pipeline.releaseFrame(frame);
+                    transactions.release();
                 }
-                else if( recv != pduLength )
-                {
-                    throw new IOException("received "+recv+" bytes instead of "+pduLength);
-                }
-
-                // interpret PDU and get result:
-                pduLength = processPDU( new ModbusSlaveAddress(slaveSocket.getInetAddress(), uID), buffer, 7, pduLength);
+            }
+        });
+        ModbusTcpIpFrameBuffer input = new ModbusTcpIpFrameBuffer();
 
-                if( pduLength > 0 )
+        try
+        {
+            byte[] buffer = pipeline.acquireFrame();
+            while( input.fill(slaveInput) != -1 )
+            {
+                // submit all the complete frames received so far; an
+                // incomplete frame stays in the input buffer until the
+                // next read. stop reading when too many transactions are
+                // in progress.
+                while( input.nextFrame(buffer) > 0 )
                 {
-                    // change length in MBAP
-                    ModbusTools.setUint16(buffer,4,pduLength+1);
-
-                    // send all
-                    slaveOutput.write(buffer,0, 7+pduLength);
-                    slaveOutput.flush();
+                    transactions.acquire();
+                    pipeline.submit(buffer);
+                    buffer = pipeline.acquireFrame();
                 }
             }
         }
@@ -164,6 +162,11 @@ implements Runnable
         {
             System.err.println("ModubsTcpIpSlaveDispatcher exception " +ex.getMessage() );
         }
+        catch(InterruptedException ex)
+        {
+            System.err.println("ModubsTcpIpSlaveDispatcher interrupted");
+        }
+        pipeline.close();
 
         // close input stream before exiting
         try 
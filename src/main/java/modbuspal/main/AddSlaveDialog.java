@@ -36,6 +36,12 @@ extends javax.swing.JDialog
     private static final String RTU_PATTERN = "([\\d]+)(?:[\\s]*-[\\s]*([\\d]+))?";
     private boolean added = false;
     
+    // settings of a master target, only shown by showTargetSettings():
+    private final javax.swing.JPanel targetPanel = new javax.swing.JPanel( new java.awt.GridLayout(0, 2, 5, 5) );
+    private final javax.swing.JSpinner timeoutSpinner = new javax.swing.JSpinner( new javax.swing.SpinnerNumberModel(1000, 1, 60000, 100) );
+    private final javax.swing.JSpinner delaySpinner = new javax.swing.JSpinner( new javax.swing.SpinnerNumberModel(100, 0, 60000, 10) );
+    private final javax.swing.JSpinner inFlightSpinner = new javax.swing.JSpinner( new javax.swing.SpinnerNumberModel(1, 1, 1000, 1) );
+    
     /** 
      * Creates new form AddSlaveDialog. This constructor is usually
      * called when the user add a new slave in the project.
@@ -70,6 +76,70 @@ extends javax.swing.JDialog
         {
             nameTextField.setText(name);
         }
+        
+        initTargetPanel();
+    }
+    
+    private void initTargetPanel()
+    {
+        targetPanel.add( new javax.swing.JLabel("Request timeout (ms):") );
+        targetPanel.add( timeoutSpinner );
+        targetPanel.add( new javax.swing.JLabel("Delay between requests (ms):") );
+        targetPanel.add( delaySpinner );
+        targetPanel.add( new javax.swing.JLabel("Max. requests in progress:") );
+        targetPanel.add( inFlightSpinner );
+        targetPanel.setVisible(false);
+        
+        java.awt.GridBagConstraints gridBagConstraints = new java.awt.GridBagConstraints();
+        gridBagConstraints.gridx = 0;
+        gridBagConstraints.gridy = 2;
+        gridBagConstraints.gridwidth = 3;
+        gridBagConstraints.anchor = java.awt.GridBagConstraints.WEST;
+        gridBagConstraints.insets = new java.awt.Insets(10, 10, 10, 2);
+        getContentPane().add(targetPanel, gridBagConstraints);
+    }
+    
+    /**
+     * Shows the polling settings of a master target, initialized with the
+     * specified values.
+     * @param timeout the time to wait for a reply, in milliseconds
+     * @param delay the minimum delay between two requests to the same slave, in milliseconds
+     * @param inFlight the maximum number of requests in progress
+     */
+    public void showTargetSettings(int timeout, int delay, int inFlight)
+    {
+        timeoutSpinner.setValue(timeout);
+        delaySpinner.setValue(delay);
+        inFlightSpinner.setValue(inFlight);
+        targetPanel.setVisible(true);
+        pack();
+    }
+    
+    /**
+     * Gets the request timeout of the master target.
+     * @return the time to wait for a reply, in milliseconds
+     */
+    public int getRequestTimeout()
+    {
+        return (Integer)timeoutSpinner.getValue();
+    }
+    
+    /**
+     * Gets the delay between two requests of the master target.
+     * @return the minimum delay between two requests to the same slave, in milliseconds
+     */
+    public int getRequestDelay()
+    {
+        return (Integer)delaySpinner.getValue();
+    }
+    
+    /**
+     * Gets the maximum number of requests in progress of the master target.
+     * @return the maximum number of requests in progress
+     */
+    public int getMaxInFlight()
+    {
+        return (Integer)inFlightSpinner.getValue();
     }
 
     /**
@@ -582,6 +652,7 @@ extends javax.swing.JDialog
     {
         slavesTextArea.setText(mmt.getTargetListAsText());
         nameTextField.setText( mmt.getTargetName() );
+        showTargetSettings( mmt.getRequestTimeout(), mmt.getRequestDelay(), mmt.getMaxInFlight() );
     }
 
     public String getTargetListAsText() 
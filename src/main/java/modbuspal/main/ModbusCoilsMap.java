@@ -0,0 +1,164 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package modbuspal.main;
+
+/**
+ * A ModbusValuesMap that stores one bit per value, for the coils of a
+ * MODBUS slave. Besides the memory saving, the coils can be copied to and
+ * from the bytes of a PDU 64 at a time, instead of one by one.
+ * @author nnovic
+ */
+public class ModbusCoilsMap
+extends ModbusValuesMap
+{
+    private static final int WORD_COUNT = 65536 / 64;
+
+    /**
+     * A page that stores each value in a bit.
+     */
+    private static class BitPage
+    extends Page
+    {
+        final long bits[] = new long[PAGE_SIZE/64];
+
+        @Override
+        int get(int i)
+        {
+            return (int)( (bits[i>>6] >>> i) & 1 );
+        }
+
+        @Override
+        void set(int i, int value)
+        {
+            if( value == 0 )
+            {
+                bits[i>>6] &= ~(1L<<i);
+            }
+            else
+            {
+                bits[i>>6] |= (1L<<i);
+            }
+        }
+    }
+
+    @Override
+    Page newPage()
+    {
+        return new BitPage();
+    }
+
+    /**
+     * Returns the 64 coils of the specified word; the coils that don't
+     * exist are returned as 0.
+     */
+    private long getWord(int wordNo)
+    {
+        if( wordNo >= WORD_COUNT )
+        {
+            return 0;
+        }
+        BitPage page = (BitPage)getPage(wordNo/4);
+        if( page == null )
+        {
+            return 0;
+        }
+        return page.bits[wordNo%4] & page.existing[wordNo%4];
+    }
+
+    /**
+     * Writes the bits of the specified word that are selected by mask;
+     * the coils that don't exist are left unchanged.
+     */
+    private void setWord(int wordNo, long value, long mask)
+    {
+        if( (mask==0) || (wordNo>=WORD_COUNT) )
+        {
+            return;
+        }
+        BitPage page = (BitPage)getPage(wordNo/4);
+        if( page == null )
+        {
+            return;
+        }
+        int w = wordNo%4;
+        mask &= page.existing[w];
+        page.bits[w] = (page.bits[w] & ~mask) | (value & mask);
+    }
+
+    /**
+     * Copies a range of coils into a byte buffer, with the MODBUS
+     * conventions: the first coil is the least significant bit of the
+     * first byte. The unused bits of the last byte are cleared.
+     * @param index index (0-65535) of the first coil
+     * @param quantity number of coils to copy
+     * @param buffer the buffer where the coils are written
+     * @param offset offset of the first byte in the buffer
+     */
+    public void getBits(int index, int quantity, byte[] buffer, int offset)
+    {
+        for( int n=0; n<quantity; n+=64 )
+        {
+            // get the next 64 coils:
+            int first = index+n;
+            int shift = first % 64;
+            long bits = getWord(first/64);
+            if( shift != 0 )
+            {
+                bits = (bits >>> shift) | ( getWord(first/64 + 1) << (64-shift) );
+            }
+
+            int remaining = quantity-n;
+            if( remaining < 64 )
+            {
+                bits &= (1L<<remaining)-1;
+            }
+
+            int byteCount = Math.min(8, (remaining+7)/8);
+            for( int b=0; b<byteCount; b++ )
+            {
+                buffer[offset + n/8 + b] = (byte)( bits >>> (8*b) );
+            }
+        }
+    }
+
+    /**
+     * Copies a range of coils from a byte buffer, with the MODBUS
+     * conventions: the first coil is the least significant bit of the
+     * first byte. The coils that don't exist are ignored.
+     * @param index index (0-65535) of the first coil
+     * @param quantity number of coils to copy
+     * @param buffer the buffer where the coils are read
+     * @param offset offset of the first byte in the buffer
+     */
+    public void setBits(int index, int quantity, byte[] buffer, int offset)
+    {
+        for( int n=0; n<quantity; n+=64 )
+        {
+            // read the next 64 coils:
+            int remaining = quantity-n;
+            int byteCount = Math.min(8, (remaining+7)/8);
+            long bits = 0;
+            for( int b=0; b<byteCount; b++ )
+            {
+                bits |= (buffer[offset + n/8 + b] & 0xFFL) << (8*b);
+            }
+
+            long mask = -1L;
+            if( remaining < 64 )
+            {
+                mask = (1L<<remaining)-1;
+            }
+
+            int first = index+n;
+            int shift = first % 64;
+            setWord(first/64, bits << shift, mask << shift);
+            if( shift != 0 )
+            {
+                setWord(first/64 + 1, bits >>> (64-shift), mask >>> (64-shift));
+            }
+        }
+    }
+}
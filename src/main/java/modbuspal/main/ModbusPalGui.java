@@ -21,6 +21,7 @@ import javax.swing.event.InternalFrameEvent;
 import javax.swing.event.InternalFrameListener;
 import modbuspal.link.ModbusSerialLink;
 import modbuspal.toolkit.FileTools;
+import modbuspal.toolkit.ThreadTools;
 
 /**
  * Utilitary methods for creating new instances of ModbusPal
@@ -59,6 +60,22 @@ public class ModbusPalGui
     */
     public static void main(String args[]) 
     {
+        for(String arg:args)
+        {
+            if( arg.compareToIgnoreCase("-virtual")==0 )
+            {
+                ThreadTools.setVirtualThreadsEnabled(true);
+            }
+        }
+        for(String arg:args)
+        {
+            if( arg.compareToIgnoreCase("-headless")==0 )
+            {
+                ModbusPalHeadless.main(args);
+                return;
+            }
+        }
+
         boolean runInstall = false;
         boolean runGui = true;
         
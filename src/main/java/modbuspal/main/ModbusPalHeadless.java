@@ -0,0 +1,240 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package modbuspal.main;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import modbuspal.link.ModbusLink;
+import modbuspal.link.ModbusLinkListener;
+import modbuspal.link.ModbusReplayLink;
+import modbuspal.link.ModbusTcpIpLink;
+import modbuspal.recorder.ModbusPalRecorder;
+
+/**
+ * Runs ModbusPal without graphical user interface. The project is loaded
+ * from the command line, its automations are started, then the link is
+ * started and runs until the JVM is stopped. AWT is never initialized, so
+ * that ModbusPal can run on a server or in a container without display.
+ * <p>
+ * Command line: -headless [-project file.xmpp] [-tcp port | -replay file.txt
+ * [-speed factor|max]] [-record file.xmpr|file.xmpj]
+ * <br>
+ * If neither -tcp nor -replay is specified, the link selected in the project
+ * is used. If -record is specified, the traffic is recorded into the file
+ * until ModbusPal stops. -speed sets the speed of the replay, compared to the
+ * recording (see ModbusReplayLink).
+ * @author nnovic
+ */
+public class ModbusPalHeadless
+implements ModbusLinkListener
+{
+    private final ModbusPalProject modbusPalProject;
+    private final ModbusLink link;
+    private final CountDownLatch linkStopped = new CountDownLatch(1);
+    private boolean stopped = false;
+
+    /**
+     * Creates a new instance of ModbusPalHeadless.
+     * @param mpp the project to run
+     * @param l the link to start, or null if the project must run without link
+     */
+    public ModbusPalHeadless(ModbusPalProject mpp, ModbusLink l)
+    {
+        modbusPalProject = mpp;
+        link = l;
+    }
+
+    /**
+     * Starts the automations of the project, then the link.
+     * @throws Exception if the link cannot be started
+     */
+    public void start()
+    throws Exception
+    {
+        modbusPalProject.startAllAutomations();
+        if( link != null )
+        {
+            link.start(this);
+        }
+    }
+
+    /**
+     * Stops the link, then the automations of the project. Calling this
+     * method several times has no effect.
+     */
+    public synchronized void stop()
+    {
+        if( stopped == true )
+        {
+            return;
+        }
+        stopped = true;
+
+        // the link may already have stopped by itself (end of replay,
+        // error...):
+        if( (link!=null) && (linkStopped.getCount()>0) )
+        {
+            link.stop();
+        }
+        modbusPalProject.stopAllAutomations();
+
+        try
+        {
+            ModbusPalRecorder.stop();
+        }
+        catch (IOException ex)
+        {
+            System.err.println("Cannot close the record file: "+ex);
+        }
+    }
+
+    /**
+     * Blocks until the link is stopped, either by stop() or because of
+     * an error. If there is no link, blocks until the JVM is stopped.
+     * @throws InterruptedException
+     */
+    public void waitForLink()
+    throws InterruptedException
+    {
+        linkStopped.await();
+    }
+
+    @Override
+    public void linkBroken()
+    {
+        System.out.println("Link stopped");
+        linkStopped.countDown();
+    }
+
+    private static void usage()
+    {
+        System.err.println("usage: -headless [-project file.xmpp] [-tcp port | -replay file.txt [-speed factor|max]] [-record file] [-virtual]");
+    }
+
+    private static ModbusLink createLink(ModbusPalProject mpp, String tcpPort, String replayFile, String replaySpeed)
+    throws Exception
+    {
+        if( (replayFile!=null) && (replaySpeed!=null) )
+        {
+            return new ModbusReplayLink(mpp, new File(replayFile), ModbusReplayLink.parseSpeed(replaySpeed) );
+        }
+        if( tcpPort != null )
+        {
+            return ModbusTcpIpLink.create(mpp, Integer.parseInt(tcpPort) );
+        }
+        if( replayFile != null )
+        {
+            return new ModbusReplayLink(mpp, new File(replayFile) );
+        }
+
+        // use the link selected in the project ("TCP/IP" or "tcpip"):
+        if( mpp.selectedLink.replace("/","").compareToIgnoreCase("tcpip")==0 )
+        {
+            return ModbusTcpIpLink.create(mpp, Integer.parseInt(mpp.linkTcpipPort) );
+        }
+        if( (mpp.selectedLink.compareToIgnoreCase("replay")==0) && (mpp.linkReplayFile!=null) )
+        {
+            return new ModbusReplayLink(mpp, mpp.linkReplayFile);
+        }
+
+        System.out.println("Link \""+mpp.selectedLink+"\" is not supported in headless mode, no link started");
+        return null;
+    }
+
+    /**
+     * Entry point of the headless mode; called by ModbusPalGui.main() when
+     * the -headless option is present.
+     * @param args the command line arguments
+     */
+    public static void main(String args[])
+    {
+        // must be set before any AWT class is initialized:
+        System.setProperty("java.awt.headless", "true");
+
+        String projectFile = null;
+        String tcpPort = null;
+        String replayFile = null;
+        String recordFile = null;
+        String replaySpeed = null;
+
+        for(int i=0; i<args.length; i++)
+        {
+            String arg = args[i];
+            if( (arg.compareToIgnoreCase("-project")==0) && (i+1<args.length) )
+            {
+                projectFile = args[++i];
+            }
+            else if( (arg.compareToIgnoreCase("-tcp")==0) && (i+1<args.length) )
+            {
+                tcpPort = args[++i];
+            }
+            else if( (arg.compareToIgnoreCase("-replay")==0) && (i+1<args.length) )
+            {
+                replayFile = args[++i];
+            }
+            else if( (arg.compareToIgnoreCase("-speed")==0) && (i+1<args.length) )
+            {
+                replaySpeed = args[++i];
+            }
+            else if( (arg.compareToIgnoreCase("-record")==0) && (i+1<args.length) )
+            {
+                recordFile = args[++i];
+            }
+            else if( (arg.compareToIgnoreCase("-headless")!=0) && (arg.compareToIgnoreCase("-virtual")!=0) )
+            {
+                System.err.println("Unknown option: "+arg);
+                usage();
+                System.exit(1);
+            }
+        }
+
+        final ModbusPalHeadless server;
+        try
+        {
+            ModbusPalProject mpp;
+            if( projectFile != null )
+            {
+                mpp = ModbusPalProject.load( new File(projectFile) );
+            }
+            else
+            {
+                mpp = new ModbusPalProject();
+            }
+            server = new ModbusPalHeadless(mpp, createLink(mpp, tcpPort, replayFile, replaySpeed) );
+            if( recordFile != null )
+            {
+                ModbusPalRecorder.start( new File(recordFile) );
+            }
+            server.start();
+        }
+        catch(Exception ex)
+        {
+            System.err.println("Cannot start ModbusPal: "+ex);
+            System.exit(1);
+            return;
+        }
+
+        Runtime.getRuntime().addShutdownHook( new Thread( new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                server.stop();
+            }
+        }, "shutdown") );
+
+        try
+        {
+            server.waitForLink();
+        }
+        catch (InterruptedException ex)
+        {
+            // not an error
+        }
+        server.stop();
+    }
+}
@@ -990,7 +990,7 @@ implements ModbusPalXML, WindowListener, ModbusPalListener, ModbusLinkListener
         try
         {
             System.out.printf("[%s] Start TCP/link (port=%d)\r\n", modbusPalProject.getName(), port);
-            currentLink = new ModbusTcpIpLink(modbusPalProject, port);
+            currentLink = ModbusTcpIpLink.create(modbusPalProject, port);
             
             if( isMaster )
             {
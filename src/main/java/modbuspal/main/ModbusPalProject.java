@@ -5,6 +5,7 @@
 
 package modbuspal.main;
 
+import java.awt.GraphicsEnvironment;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
@@ -154,6 +155,7 @@ implements ModbusPalXML
         loadAutomations(doc);
         loadSlaves(doc);
         loadBindings(doc,null);
+        loadMasterTasks(doc);
         
         // execute startup scripts
         for( ScriptRunner runner:scripts ) {
@@ -322,6 +324,13 @@ implements ModbusPalXML
             // If already exists:
             if( automation!=null )
             {
+                // without display, keep the existing automation:
+                if( GraphicsEnvironment.isHeadless()==true )
+                {
+                    System.err.println("An automation called \""+name+"\" already exists, the existing automation is kept");
+                    continue;
+                }
+
                 // display a dialog and ask the user what to do:
                 ErrorMessage dialog = new ErrorMessage(2);
                 dialog.append("An automation called \""+name+"\" already exists. Do you want to overwrite the existing automation or to keep it ?");
@@ -378,6 +387,23 @@ implements ModbusPalXML
         }
     }
 
+    /**
+     * looks for the "task" tags in the "master" tag of the provided document
+     * and create a master task for each.
+     * @param doc
+     */
+    private void loadMasterTasks(Document doc)
+    {
+        NodeList masterList = doc.getElementsByTagName("master");
+        for(int i=0; i<masterList.getLength(); i++)
+        {
+            for(Node taskNode : XMLTools.findChildren(masterList.item(i), "task"))
+            {
+                addModbusMasterTask( ModbusMasterTask.load(taskNode) );
+            }
+        }
+    }
+
     /**
      * This method scans the content of the document in order to find all
      * "<binding>" tags, and then call the loadBinding(Node) method for each
@@ -601,6 +627,7 @@ implements ModbusPalXML
         saveAutomations(out);
         saveSlaves(out);
         saveScripts(out, projectFile);
+        saveMasterTasks(out);
 
         String closeTag = "</modbuspal_project>\r\n";
         out.write( closeTag.getBytes() );
@@ -761,6 +788,26 @@ implements ModbusPalXML
         out.write(closeTag.getBytes());
     }
 
+    private void saveMasterTasks(OutputStream out)
+    throws IOException
+    {
+        if( masterTasks.isEmpty() )
+        {
+            return;
+        }
+
+        String openTag = "<master>\r\n";
+        out.write( openTag.getBytes() );
+
+        for(ModbusMasterTask task:masterTasks)
+        {
+            task.save(out);
+        }
+
+        String closeTag = "</master>\r\n";
+        out.write(closeTag.getBytes());
+    }
+
 
 
 
@@ -971,6 +1018,13 @@ implements ModbusPalXML
 
         if( existing != null )
         {
+            // without display, keep the existing automation:
+            if( GraphicsEnvironment.isHeadless()==true )
+            {
+                System.err.println("An automation called \""+name+"\" already exists, the existing automation is kept");
+                return existing;
+            }
+
             // show a dialog to let the user decide
             // what to do in order to resolve the conflict:
             ErrorMessage conflict = new ErrorMessage(2);
@@ -1310,6 +1364,13 @@ implements ModbusPalXML
         // check if slaveID is already assigned:
         if( getModbusSlave(slaveID) != null )
         {
+            // without display, keep the existing slave:
+            if( GraphicsEnvironment.isHeadless()==true )
+            {
+                System.err.println("A slave with address "+slaveID+" already exists, the existing slave is kept");
+                return getModbusSlave(slaveID);
+            }
+
             // show a dialog to let the user decide
             // what to do in order to resolve the conflict:
             ErrorMessage conflict = new ErrorMessage(2);
@@ -2026,7 +2087,7 @@ implements ModbusPalXML
     {
         if( masterTasks.contains(mmt)==true )
         {
-            masterTasks.add(mmt);
+            masterTasks.remove(mmt);
             notifyModbusMasterTaskRemoved(mmt);
         }
     }
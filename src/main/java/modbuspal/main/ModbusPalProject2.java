@@ -5,15 +5,10 @@
 
 package modbuspal.main;
 
-import java.net.SocketException;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Set;
-import java.util.logging.Level;
-import java.util.logging.Logger;
 import modbuspal.slave.ModbusSlave;
 import modbuspal.slave.ModbusSlaveAddress;
-import modbuspal.toolkit.NetworkTools;
 
 /**
  * takes care of some particularies of the management of the modbus slaves
@@ -24,169 +19,13 @@ public abstract class ModbusPalProject2
 {
     final private HashMap<ModbusSlaveAddress, ModbusSlave> knownSlaves = new HashMap<ModbusSlaveAddress, ModbusSlave>();
 
-    // The MODBUS ADDRESS we are trying to match has an InetAddress.
-    // 1/ A perfect match would be a MODBUS ADDRESS with the same InetAddress
-    // and also the same Rtu address.
-    // 2/ A very good match would be a MODBUS ADDRESS with no InetAddress but
-    // with a matching Rtu address.
-    // 3/ An acceptable match would be a MODBUS address with an
-    // InetAddress corresponding to a local network interface and a
-    // matching Rtu address.
-    // 4/ As a last resort, a MODBUS address with an InetAddress corresponding
-    // to a local network interface and no specified Rtu address would be ok.    
-    private ModbusSlaveAddress getMatchingTcpAddress(ModbusSlaveAddress id)
-    {
-        ModbusSlaveAddress bestMatch = null;
-        int matchRate = Integer.MAX_VALUE;
-        
-        Set<ModbusSlaveAddress> addresses = knownSlaves.keySet();
-        for(ModbusSlaveAddress address : addresses )
-        {
-            if(address.getIpAddress()==null)
-            {
-                if(address.getRtuAddress()==id.getRtuAddress())
-                {
-                    if( matchRate > 2 )
-                    {
-                        bestMatch = address;
-                        matchRate = 2;
-                    }
-                }
-            }
-            
-            else  if( address.getIpAddress().equals(id.getIpAddress()) == true )
-            {
-                // perfect IP address match. But now have to check the
-                // optional slave identifier.
-                if( address.getRtuAddress() == id.getRtuAddress() )
-                {
-                    if(matchRate > 1 )
-                    {
-                        bestMatch = address;
-                        matchRate = 1;
-                    }
-                }  
-                else if( address.getRtuAddress() == -1 )
-                {
-                    if(matchRate > 3)
-                    {
-                        bestMatch = address;
-                        matchRate = 3;
-                    }
-                }
-            }
-            
-            else
-            {
-                try 
-                {
-                    if( NetworkTools.isLocalAddress(address.getIpAddress())==true )
-                    {
-                        if( address.getRtuAddress() == id.getRtuAddress() )
-                        {
-                            if(matchRate > 4)
-                            {
-                                bestMatch=address;
-                                matchRate = 4;
-                            }
-                        }
-                        else if( address.getRtuAddress() == -1 )
-                        {
-                            if(matchRate > 5)
-                            {
-                                bestMatch = address;
-                                matchRate = 5;
-                            }
-                        }
-                    }
-                }
-                catch (SocketException ex) 
-                {
-                    Logger.getLogger(ModbusPalProject2.class.getName()).log(Level.SEVERE, null, ex);
-                }                
-            }
-        }
-        return bestMatch;
-
-    }
-    
-    
-    
-    private ModbusSlaveAddress getMatchingRtuAddress(ModbusSlaveAddress id)
-    {
-        ModbusSlaveAddress bestMatch = null;
-        int matchRate = Integer.MAX_VALUE;
-        
-        Set<ModbusSlaveAddress> addresses = knownSlaves.keySet();
-        for(ModbusSlaveAddress address : addresses )
-        {
-            if(address.getIpAddress()==null)
-            {
-                if(address.getRtuAddress()==id.getRtuAddress())
-                {
-                    if( matchRate > 1 )
-                    {
-                        bestMatch = address;
-                        matchRate = 1;
-                    }
-                }
-            }
-            
-            else
-            {
-                try 
-                {
-                    if( NetworkTools.isLocalAddress(address.getIpAddress())==true )
-                    {
-                        if( address.getRtuAddress() == id.getRtuAddress() )
-                        {
-                            if(matchRate > 2)
-                            {
-                                bestMatch=address;
-                                matchRate = 2;
-                            }
-                        }
-                        else if( address.getRtuAddress() == -1 )
-                        {
-                            if(matchRate > 3)
-                            {
-                                bestMatch = address;
-                                matchRate = 3;
-                            }
-                        }
-                    }
-                }
-                catch (SocketException ex) 
-                {
-                    Logger.getLogger(ModbusPalProject2.class.getName()).log(Level.SEVERE, null, ex);
-                }                
-            }
-        }
-        return bestMatch;        
-    }
-    
     /**
-     * tries to retrieve an already existing ModbusSlaveAddress instance that
-     * might match the one in argument.
-     * @param id
-     * @return tries 
+     * index of knownSlaves, rebuilt each time a slave is added or removed,
+     * or when the local network addresses change.
+     * see ModbusSlaveRoutingTable for the matching rules.
      */
-    private ModbusSlaveAddress getMatchingSlaveAddress(ModbusSlaveAddress id)
-    {
-        // if the slave address in argument has no ip address
-        // (MODBUS RTU flavor)...
-        if( id.getIpAddress()==null )
-        {
-            return getMatchingRtuAddress(id);
-        }
+    private volatile ModbusSlaveRoutingTable routingTable = ModbusSlaveRoutingTable.EMPTY;
 
-        // MODBUS TCP flavor...
-        else
-        {                
-            return getMatchingTcpAddress(id);
-        }
-    }
-    
      /**
      * Returns the MODBUS slave identified by its slave number. If the slave
      * does not exist, and if createIfNotExist is true, then the slave is created
@@ -199,22 +38,34 @@ public abstract class ModbusPalProject2
      */
     public ModbusSlave getModbusSlave(ModbusSlaveAddress id, boolean createIfNotExist)
     {
-        synchronized(knownSlaves)
+        // the routing table is immutable, no lock is required to read it:
+        ModbusSlaveRoutingTable table = routingTable;
+        if( table.isObsolete()==true )
         {
-            ModbusSlaveAddress matchedId = getMatchingSlaveAddress(id);
-            if( (matchedId!=null) && (knownSlaves.get(matchedId)!=null) )
+            // the local network addresses have changed
+            synchronized(knownSlaves)
             {
-                return knownSlaves.get(matchedId);
+                routingTable = new ModbusSlaveRoutingTable(knownSlaves);
+                table = routingTable;
             }
-            else if( createIfNotExist==true )
+        }
+
+        ModbusSlave slave = table.lookup(id);
+        if( (slave!=null) || (createIfNotExist==false) )
+        {
+            return slave;
+        }
+
+        synchronized(knownSlaves)
+        {
+            // the slave may have been created in the meantime:
+            slave = routingTable.lookup(id);
+            if( slave == null )
             {
                 setModbusSlave( id, new ModbusSlave(id) );
-                return knownSlaves.get(id);
-            }
-            else
-            {
-                return null;
+                slave = knownSlaves.get(id);
             }
+            return slave;
         }
     }
 
@@ -232,6 +83,7 @@ public abstract class ModbusPalProject2
         {
             ModbusSlave old = knownSlaves.get(id);
             knownSlaves.put(id, s);
+            routingTable = new ModbusSlaveRoutingTable(knownSlaves);
             if(s!=null)
             {
                 notifySlaveAdded(s);
@@ -0,0 +1,193 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package modbuspal.main;
+
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import modbuspal.slave.ModbusSlave;
+import modbuspal.slave.ModbusSlaveAddress;
+import modbuspal.toolkit.NetworkTools;
+
+/**
+ * An immutable index of the slaves of the project, that resolves the
+ * address of an incoming request into a slave without locking, iterating or
+ * allocating. It is built from the map of the known slaves each time a slave
+ * is added or removed, and applies the same matching rules as
+ * ModbusPalProject2 did when it scanned the map:
+ * <ul>
+ * <li>for a MODBUS TCP address: same ip and same rtu, then no ip and same rtu,
+ * then same ip and no rtu, then local ip and same rtu, then local ip and
+ * no rtu;
+ * <li>for a MODBUS RTU address: no ip and same rtu, then local ip and same
+ * rtu, then local ip and no rtu.
+ * </ul>
+ * Each table is an array of 256 slots indexed by the rtu address; the slot
+ * 0 holds the slave that has no rtu address. The local addresses are taken
+ * from the cache of NetworkTools; when they change, the table becomes
+ * obsolete and has to be built again.
+ * @author nnovic
+ */
+class ModbusSlaveRoutingTable
+{
+    private static final int SLOTS = 256;
+
+    /** an empty table, for a project without slaves */
+    static final ModbusSlaveRoutingTable EMPTY = new ModbusSlaveRoutingTable( new HashMap<ModbusSlaveAddress, ModbusSlave>() );
+
+    private final ModbusSlave rtuSlots[] = new ModbusSlave[SLOTS];
+    private final ModbusSlave localSlots[] = new ModbusSlave[SLOTS];
+    private final HashMap<InetAddress, ModbusSlave[]> ipSlots = new HashMap<InetAddress, ModbusSlave[]>();
+    private final int networkGeneration;
+
+    /**
+     * Builds the routing table of the specified slaves. The entries of
+     * the map that have no slave are ignored.
+     * @param slaves the slaves indexed by their address
+     */
+    ModbusSlaveRoutingTable(Map<ModbusSlaveAddress, ModbusSlave> slaves)
+    {
+        HashMap<InetAddress, Boolean> locals = new HashMap<InetAddress, Boolean>();
+        int generation = 0;
+
+        for( Map.Entry<ModbusSlaveAddress, ModbusSlave> entry : slaves.entrySet() )
+        {
+            ModbusSlave slave = entry.getValue();
+            if( slave == null )
+            {
+                continue;
+            }
+
+            ModbusSlaveAddress address = entry.getKey();
+            int slot = getSlot( address );
+            InetAddress ip = address.getIpAddress();
+            if( ip == null )
+            {
+                rtuSlots[slot] = slave;
+                continue;
+            }
+
+            ModbusSlave table[] = ipSlots.get(ip);
+            if( table == null )
+            {
+                table = new ModbusSlave[SLOTS];
+                ipSlots.put(ip, table);
+            }
+            table[slot] = slave;
+
+            Boolean local = locals.get(ip);
+            if( local == null )
+            {
+                if( locals.isEmpty()==true )
+                {
+                    // the local addresses are only needed for the slaves
+                    // that have an ip address
+                    generation = getNetworkGeneration();
+                }
+                local = isLocalAddress(ip);
+                locals.put(ip, local);
+            }
+            if( (local==true) && (localSlots[slot]==null) )
+            {
+                localSlots[slot] = slave;
+            }
+        }
+        networkGeneration = generation;
+    }
+
+    private static int getNetworkGeneration()
+    {
+        try
+        {
+            return NetworkTools.getGeneration();
+        }
+        catch (SocketException ex)
+        {
+            Logger.getLogger(ModbusSlaveRoutingTable.class.getName()).log(Level.SEVERE, null, ex);
+            return -1;
+        }
+    }
+
+    /**
+     * Checks if the table has been built with a set of local addresses that
+     * is not up to date. Only the tables that hold slaves with an ip
+     * address depend on the local addresses.
+     * @return true if the table must be built again
+     */
+    boolean isObsolete()
+    {
+        if( ipSlots.isEmpty()==true )
+        {
+            return false;
+        }
+        return networkGeneration != getNetworkGeneration();
+    }
+
+    private static boolean isLocalAddress(InetAddress ip)
+    {
+        try
+        {
+            return NetworkTools.isLocalAddress(ip);
+        }
+        catch (SocketException ex)
+        {
+            Logger.getLogger(ModbusSlaveRoutingTable.class.getName()).log(Level.SEVERE, null, ex);
+            return false;
+        }
+    }
+
+    private static int getSlot(ModbusSlaveAddress address)
+    {
+        int rtu = address.getRtuAddress();
+        if( rtu == -1 )
+        {
+            return 0;
+        }
+        return rtu;
+    }
+
+    /**
+     * Finds the slave that best matches the specified address.
+     * @param id the address of the incoming request
+     * @return the matching slave, or null if there is none
+     */
+    ModbusSlave lookup(ModbusSlaveAddress id)
+    {
+        int slot = getSlot(id);
+        InetAddress ip = id.getIpAddress();
+        ModbusSlave slave;
+
+        if( ip != null )
+        {
+            ModbusSlave table[] = ipSlots.get(ip);
+            if( (table!=null) && ((slave=table[slot])!=null) )
+            {
+                return slave;
+            }
+            if( (slave=rtuSlots[slot]) != null )
+            {
+                return slave;
+            }
+            if( (table!=null) && ((slave=table[0])!=null) )
+            {
+                return slave;
+            }
+        }
+        else if( (slave=rtuSlots[slot]) != null )
+        {
+            return slave;
+        }
+
+        if( (slave=localSlots[slot]) != null )
+        {
+            return slave;
+        }
+        return localSlots[0];
+    }
+}
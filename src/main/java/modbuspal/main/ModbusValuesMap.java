@@ -7,16 +7,138 @@ package modbuspal.main;
 
 /**
  * This class has been created especially to handle the registers of a 
- * MODBUS slave.
+ * MODBUS slave. The values are stored in pages of 256 registers, that are
+ * allocated when the first register of the page is added and released when
+ * the last one is deleted; the memory used by the map is proportional to
+ * the number of registers that are actually defined.
+ * <p>
+ * The registers are ordered by address. The number of registers in each
+ * page is kept in a Fenwick tree, so that the order of a register and the
+ * register at a given order are found in O(log n) instead of scanning the
+ * whole list.
  * @author nnovic
  */
 public class ModbusValuesMap
 {
-    private int indexedValues[] = new int[65536];
-    private boolean existingValues[] = new boolean[65536];
-    private int orderedIndexes[] = new int[65536];
+    static final int PAGE_SIZE = 256;
+    static final int PAGE_COUNT = 65536 / PAGE_SIZE;
+
+    /**
+     * A page of 256 consecutive registers. The subclasses define how the
+     * values are stored.
+     */
+    static abstract class Page
+    {
+        final long existing[] = new long[PAGE_SIZE/64];
+        int count = 0;
+
+        boolean exists(int i)
+        {
+            return ( existing[i>>6] & (1L<<i) ) != 0;
+        }
+
+        /** number of registers of this page that are before register i */
+        int countBefore(int i)
+        {
+            int n = 0;
+            for( int w=0; w<(i>>6); w++ )
+            {
+                n += Long.bitCount(existing[w]);
+            }
+            return n + Long.bitCount( existing[i>>6] & ((1L<<i)-1) );
+        }
+
+        /** position in this page of the n-th register of the page */
+        int select(int n)
+        {
+            for( int w=0; w<existing.length; w++ )
+            {
+                long bits = existing[w];
+                int c = Long.bitCount(bits);
+                if( n < c )
+                {
+                    for( ; n>0; n-- )
+                    {
+                        bits &= bits-1;
+                    }
+                    return (w<<6) + Long.numberOfTrailingZeros(bits);
+                }
+                n -= c;
+            }
+            return -1;
+        }
+
+        abstract int get(int i);
+
+        abstract void set(int i, int value);
+    }
+
+    /**
+     * A page that stores each value in an int.
+     */
+    private static class IntPage
+    extends Page
+    {
+        final int values[] = new int[PAGE_SIZE];
+
+        @Override
+        int get(int i)
+        {
+            return values[i];
+        }
+
+        @Override
+        void set(int i, int value)
+        {
+            values[i] = value;
+        }
+    }
+
+
+    private Page pages[] = new Page[PAGE_COUNT];
+    /** Fenwick tree of the number of registers in each page (1-based) */
+    private int pageCounts[] = new int[PAGE_COUNT+1];
     private int indexCount = 0;
 
+    /**
+     * Creates the storage for 256 consecutive values.
+     * @return a new page
+     */
+    Page newPage()
+    {
+        return new IntPage();
+    }
+
+    /**
+     * Returns the page that holds the specified registers.
+     * @param pageNo index of the page (register index / 256)
+     * @return the page, or null if none of its registers exist
+     */
+    Page getPage(int pageNo)
+    {
+        return pages[pageNo];
+    }
+
+    private void updatePageCount(int pageNo, int delta)
+    {
+        for( int i=pageNo+1; i<=PAGE_COUNT; i+=(i & -i) )
+        {
+            pageCounts[i] += delta;
+        }
+        indexCount += delta;
+    }
+
+    /** number of registers in the pages before pageNo */
+    private int countPagesBefore(int pageNo)
+    {
+        int n = 0;
+        for( int i=pageNo; i>0; i-=(i & -i) )
+        {
+            n += pageCounts[i];
+        }
+        return n;
+    }
+
     /**
      * Mark the register specified by "index" has removed.
      * @param index index (0-65535) of the register
@@ -33,15 +155,66 @@ public class ModbusValuesMap
             return;
         }
 
-        if( existingValues[index]==true )
+        Page page = pages[index/PAGE_SIZE];
+        int i = index % PAGE_SIZE;
+        if( (page!=null) && (page.exists(i)==true) )
         {
-            int order = getOrderOf(index);
-            for( int i=order; i<indexCount-1; i++)
+            page.existing[i>>6] &= ~(1L<<i);
+            page.count--;
+            if( page.count == 0 )
             {
-                orderedIndexes[i] = orderedIndexes[i+1];
+                pages[index/PAGE_SIZE] = null;
             }
-            existingValues[index]=false;
-            indexCount--;
+            updatePageCount(index/PAGE_SIZE, -1);
+        }
+    }
+
+    /**
+     * Mark a range of registers as removed.
+     * @param index index (0-65535) of the first register in the range
+     * @param quantity number of registers to remove
+     */
+    public void deleteIndexes(int index, int quantity)
+    {
+        if( index < 0 )
+        {
+            quantity += index;
+            index = 0;
+        }
+
+        if( (index+quantity) > 65536 )
+        {
+            quantity = 65536-index;
+        }
+
+        while( quantity > 0 )
+        {
+            int pageNo = index/PAGE_SIZE;
+            int i = index % PAGE_SIZE;
+            int n = Math.min(quantity, PAGE_SIZE-i);
+            Page page = pages[pageNo];
+            if( page != null )
+            {
+                int removed = 0;
+                for( int j=i; j<i+n; )
+                {
+                    int w = j/64;
+                    int to = Math.min(i+n, (w+1)*64);
+                    long bits = page.existing[w] & wordMask(j%64, to-w*64);
+                    page.existing[w] &= ~bits;
+                    removed += Long.bitCount(bits);
+                    j = to;
+                }
+
+                page.count -= removed;
+                if( page.count == 0 )
+                {
+                    pages[pageNo] = null;
+                }
+                updatePageCount(pageNo, -removed);
+            }
+            index += n;
+            quantity -= n;
         }
     }
 
@@ -51,13 +224,20 @@ public class ModbusValuesMap
      */
     public void addIndex(int index)
     {
-        if( existingValues[index]==false )
+        Page page = pages[index/PAGE_SIZE];
+        if( page == null )
+        {
+            page = newPage();
+            pages[index/PAGE_SIZE] = page;
+        }
+
+        int i = index % PAGE_SIZE;
+        if( page.exists(i)==false )
         {
-            existingValues[index]=true;
-            indexedValues[index] = 0;
-            orderedIndexes[indexCount] = index;
-            indexCount++;
-            assert(indexCount<=65536);
+            page.existing[i>>6] |= (1L<<i);
+            page.set(i, 0);
+            page.count++;
+            updatePageCount(index/PAGE_SIZE, +1);
         }
     }
 
@@ -89,12 +269,109 @@ public class ModbusValuesMap
             quantity = 0;
         }
 
-        for( int i=0; i<quantity; i++ )
+        while( quantity > 0 )
         {
-            addIndex(index+i);
+            int pageNo = index/PAGE_SIZE;
+            int i = index % PAGE_SIZE;
+            int n = Math.min(quantity, PAGE_SIZE-i);
+            Page page = pages[pageNo];
+            if( page == null )
+            {
+                page = newPage();
+                pages[pageNo] = page;
+            }
+
+            int added = 0;
+            for( int j=i; j<i+n; )
+            {
+                int w = j/64;
+                int to = Math.min(i+n, (w+1)*64);
+                long bits = wordMask(j%64, to-w*64) & ~page.existing[w];
+                page.existing[w] |= bits;
+                added += Long.bitCount(bits);
+
+                // the new registers start with 0:
+                for( ; bits!=0; bits &= bits-1 )
+                {
+                    page.set( w*64 + Long.numberOfTrailingZeros(bits), 0 );
+                }
+                j = to;
+            }
+
+            if( added > 0 )
+            {
+                page.count += added;
+                updatePageCount(pageNo, added);
+            }
+            index += n;
+            quantity -= n;
         }
     }
 
+    /**
+     * Returns the bits [from,to[ of a 64-bit word.
+     */
+    private static long wordMask(int from, int to)
+    {
+        long mask = -1L << from;
+        if( to < 64 )
+        {
+            mask &= (1L<<to)-1;
+        }
+        return mask;
+    }
+
+    /**
+     * Finds the first register, starting from the specified index, that is
+     * not marked as added. The existence bits are tested 64 at a time.
+     * @param index index of the first register to check
+     * @return the index of the first missing register, which may be above
+     * 65535 if all the registers from index to the end exist.
+     */
+    public int nextMissingIndex(int index)
+    {
+        if( index < 0 )
+        {
+            return index;
+        }
+
+        while( index < 65536 )
+        {
+            Page page = pages[index/PAGE_SIZE];
+            if( page == null )
+            {
+                return index;
+            }
+
+            int i = index % PAGE_SIZE;
+            for( int w=i/64; w<PAGE_SIZE/64; w++ )
+            {
+                long missing = ~page.existing[w];
+                if( w == i/64 )
+                {
+                    missing &= -1L << (i%64);
+                }
+                if( missing != 0 )
+                {
+                    return (index-i) + w*64 + Long.numberOfTrailingZeros(missing);
+                }
+            }
+            index += PAGE_SIZE-i;
+        }
+        return index;
+    }
+
+    /**
+     * Checks if all the registers of a range are marked as added.
+     * @param index index (0-65535) of the first register in the range
+     * @param quantity number of registers in the range
+     * @return true if all the registers of the range exist
+     */
+    public boolean indexesExist(int index, int quantity)
+    {
+        return nextMissingIndex(index) >= index+quantity;
+    }
+
     /**
      * Assigns the specified value to the register identified by its index.
      * @param index index (0-65535) of the register
@@ -112,12 +389,14 @@ public class ModbusValuesMap
             return;
         }
 
-        if( existingValues[index]==false )
+        Page page = pages[index/PAGE_SIZE];
+        int i = index % PAGE_SIZE;
+        if( (page==null) || (page.exists(i)==false) )
         {
             return;
         }
 
-        indexedValues[index] = value;
+        page.set(i, value);
 
     }
 
@@ -138,12 +417,60 @@ public class ModbusValuesMap
             return 0;
         }
 
-        if( existingValues[index]==false )
+        Page page = pages[index/PAGE_SIZE];
+        int i = index % PAGE_SIZE;
+        if( (page==null) || (page.exists(i)==false) )
         {
             return 0;
         }
 
-        return indexedValues[index];
+        return page.get(i);
+    }
+
+    /**
+     * Copies a range of values into a byte buffer, as 16-bit words in big
+     * endian order, as they appear in a MODBUS PDU. The values of the
+     * registers that don't exist are written as 0.
+     * @param index index (0-65535) of the first register
+     * @param quantity number of registers to copy
+     * @param buffer the buffer where the values are written
+     * @param offset offset of the first byte in the buffer
+     */
+    public void getWords(int index, int quantity, byte[] buffer, int offset)
+    {
+        for( int end=index+quantity; index<end; index++ )
+        {
+            int value = 0;
+            Page page = (index<65536) ? pages[index/PAGE_SIZE] : null;
+            if( (page!=null) && (page.exists(index % PAGE_SIZE)==true) )
+            {
+                value = page.get(index % PAGE_SIZE);
+            }
+            buffer[offset++] = (byte)(value >> 8);
+            buffer[offset++] = (byte)value;
+        }
+    }
+
+    /**
+     * Copies a range of values from a byte buffer that contains 16-bit
+     * words in big endian order, as they appear in a MODBUS PDU. The
+     * registers that don't exist are ignored.
+     * @param index index (0-65535) of the first register
+     * @param quantity number of registers to copy
+     * @param buffer the buffer where the values are read
+     * @param offset offset of the first byte in the buffer
+     */
+    public void setWords(int index, int quantity, byte[] buffer, int offset)
+    {
+        for( int end=index+quantity; index<end; index++ )
+        {
+            Page page = (index<65536) ? pages[index/PAGE_SIZE] : null;
+            if( (page!=null) && (page.exists(index % PAGE_SIZE)==true) )
+            {
+                page.set(index % PAGE_SIZE, ((buffer[offset] & 0xFF) << 8) | (buffer[offset+1] & 0xFF) );
+            }
+            offset += 2;
+        }
     }
 
     /**
@@ -151,7 +478,8 @@ public class ModbusValuesMap
      */
     public void clear()
     {
-        existingValues = new boolean[65536];
+        pages = new Page[PAGE_COUNT];
+        pageCounts = new int[PAGE_COUNT+1];
         indexCount=0;
     }
 
@@ -173,14 +501,15 @@ public class ModbusValuesMap
             return false;
         }
 
-        return existingValues[index];
+        Page page = pages[index/PAGE_SIZE];
+        return (page!=null) && (page.exists(index % PAGE_SIZE)==true);
     }
 
 
     /**
-     * Returns the register index corresponding to the order at which
-     * it has been added in the map. For example, if the first index added
-     * to the map was register #135, then getIndexOf(0) returns 135.
+     * Returns the register index corresponding to the specified order, the
+     * registers being ordered by address. For example, if the register
+     * with the lowest address is #135, then getIndexOf(0) returns 135.
      * @param order the order for which the index is requested
      * @return the index of the register
      */
@@ -196,13 +525,25 @@ public class ModbusValuesMap
             return 0;
         }
 
-        return orderedIndexes[order];
+        // find the page that holds the register, by descending the
+        // Fenwick tree:
+        int pageNo = 0;
+        for( int step=PAGE_COUNT; step>0; step>>=1 )
+        {
+            int next = pageNo + step;
+            if( (next<=PAGE_COUNT) && (pageCounts[next]<=order) )
+            {
+                pageNo = next;
+                order -= pageCounts[next];
+            }
+        }
+        return pageNo*PAGE_SIZE + pages[pageNo].select(order);
     }
 
     /**
-     * Get the order of the register identified by the specified index.
-     * For example, if the first register added to the map was #135,
-     * then getOrderOf(135) returns 0;
+     * Get the order of the register identified by the specified index, the
+     * registers being ordered by address. For example, if the register with
+     * the lowest address is #135, then getOrderOf(135) returns 0;
      * @param index the index of the register
      * @return the order of the register
      */
@@ -218,20 +559,13 @@ public class ModbusValuesMap
             index=65535;
         }
 
-        if( existingValues[index]==false )
+        if( indexExists(index)==false )
         {
             return 0;
         }
 
-        for(int i=0; i<indexCount; i++ )
-        {
-            if( orderedIndexes[i]==index )
-            {
-                return i;
-            }
-        }
-
-        return 0;
+        int pageNo = index/PAGE_SIZE;
+        return countPagesBefore(pageNo) + pages[pageNo].countBefore(index % PAGE_SIZE);
     }
 
     /**
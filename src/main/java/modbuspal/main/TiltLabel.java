@@ -6,6 +6,7 @@
 package modbuspal.main;
 
 import modbuspal.toolkit.FileTools;
+import modbuspal.toolkit.ThreadTools;
 
 import java.net.URL;
 import java.util.logging.Level;
@@ -58,7 +59,7 @@ implements Runnable
     public void start()
     {
         execute=true;
-        thread = new Thread(this,"tilt");
+        thread = ThreadTools.newThread(this,"tilt");
         thread.start();
     }
 
@@ -4,8 +4,13 @@
  */
 package modbuspal.master;
 
+import java.io.IOException;
+import java.io.OutputStream;
+
 /**
- *
+ * A pause between two requests of a target. The pause applies to each
+ * slave of the target separately: the other slaves keep being polled
+ * while one of them waits.
  * @author JMC15
  */
 public class ModbusMasterDelay
@@ -29,4 +34,12 @@ extends ModbusMasterRequest
     {
         return delayMs;
     }
+    
+    @Override
+    void save(OutputStream out)
+    throws IOException
+    {
+        String tag = "<delay duration=\"" + delayMs + "\"/>\r\n";
+        out.write( tag.getBytes() );
+    }
 }
@@ -11,8 +11,12 @@
 
 package modbuspal.master;
 
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
 import java.util.ArrayList;
 import java.util.List;
+import javax.swing.JLabel;
+import javax.swing.Timer;
 import javax.swing.tree.DefaultTreeModel;
 import javax.swing.tree.MutableTreeNode;
 import javax.swing.tree.TreeNode;
@@ -27,6 +31,7 @@ import modbuspal.main.ModbusPalPane;
 import modbuspal.slave.ModbusSlave;
 import modbuspal.slave.ModbusSlaveAddress;
 import modbuspal.toolkit.GUITools;
+import modbuspal.toolkit.ThreadTools;
 
 /**
  *
@@ -42,15 +47,29 @@ implements ModbusPalListener
     private DefaultTreeModel mmTreeModel;
     private ArrayList<Thread> threads;
     private boolean isRunning = false;
+    private final JLabel statisticsLabel = new JLabel(" ");
+    private final Timer statisticsTimer;
     
     /** Creates new form ModbusMasterDialog */
     public ModbusMasterDialog(ModbusPalPane p)
     {
         modbusPalPane = p;
-        setProject(p.getProject());
         threads = new ArrayList<Thread>();
         initComponents();
-        initTree();
+        
+        // the cycle times of the tasks are displayed below the tree, and
+        // refreshed every second while the master is running:
+        getContentPane().add(statisticsLabel, java.awt.BorderLayout.PAGE_END);
+        statisticsTimer = new Timer(1000, new ActionListener()
+        {
+            @Override
+            public void actionPerformed(ActionEvent e)
+            {
+                updateStatistics();
+            }
+        });
+        
+        setProject(p.getProject());
     }
 
     public void setProject(ModbusPalProject p)
@@ -58,14 +77,40 @@ implements ModbusPalListener
         if( modbusPalProject!=null)
         {
             modbusPalProject.removeModbusPalListener(this);
+            for(ModbusMasterTask mmt : modbusPalProject.getModbusMasterTasks())
+            {
+                mmt.detach();
+            }
         }
         modbusPalProject = p;
+        initTree();
         if(modbusPalProject!=null)
         {
             modbusPalProject.addModbusPalListener(this);
+            
+            // display the tasks that have been loaded with the project:
+            for(ModbusMasterTask mmt : modbusPalProject.getModbusMasterTasks())
+            {
+                modbusMasterTaskAdded(mmt);
+            }
         }
     }
     
+    /**
+     * Displays the number of cycles and the cycle times of each task.
+     */
+    private void updateStatistics()
+    {
+        StringBuilder sb = new StringBuilder("<html>");
+        for(ModbusMasterTask mmt : modbusPalProject.getModbusMasterTasks())
+        {
+            sb.append( String.format("%s: %d cycles, last cycle %d ms, average %d ms<br>",
+                    mmt.getTaskName(), mmt.getCycleCount(), mmt.getLastCycleTime(), mmt.getAverageCycleTime()) );
+        }
+        sb.append("</html>");
+        statisticsLabel.setText( sb.toString() );
+    }
+    
     private void initTree()
     {
         // remove all tree nodes
@@ -95,6 +140,7 @@ implements ModbusPalListener
             // create new task
             ModbusMasterTask mmt = new ModbusMasterTask();
             mmt.setTaskName(taskName);
+            mmt.setMaxInFlight( ntd.getMaxInFlight() );
             
             modbusPalProject.addModbusMasterTask(mmt);
         }
@@ -113,6 +159,7 @@ implements ModbusPalListener
             String taskName = ntd.getTaskName();
             
             mmt.setTaskName(taskName);
+            mmt.setMaxInFlight( ntd.getMaxInFlight() );
 
             mmTreeModel.nodeChanged(mmt);
         }
@@ -139,6 +186,7 @@ implements ModbusPalListener
     {
         // create dialog for target selection
         AddSlaveDialog asd = new AddSlaveDialog("Target slave(s)");
+        asd.showTargetSettings(ModbusMasterTask.DEFAULT_REQUEST_TIMEOUT, ModbusMasterTask.DEFAULT_REQUEST_DELAY, ModbusMasterTask.DEFAULT_TARGET_MAX_IN_FLIGHT);
         asd.setVisible(true);
         if( asd.isAdded() == false )
         {
@@ -155,6 +203,9 @@ implements ModbusPalListener
         mmt.setTargetName(targetName);
         mmt.setTargetList(targets);
         mmt.setTargetListAsText(targetsAsString);
+        mmt.setRequestTimeout( asd.getRequestTimeout() );
+        mmt.setRequestDelay( asd.getRequestDelay() );
+        mmt.setMaxInFlight( asd.getMaxInFlight() );
         
         // add the new node in the tree
         mmTreeModel.insertNodeInto(mmt, parent, parent.getChildCount());
@@ -181,6 +232,9 @@ implements ModbusPalListener
         mmt.setTargetName(targetName);
         mmt.setTargetList(targets);
         mmt.setTargetListAsText(targetsAsString);
+        mmt.setRequestTimeout( asd.getRequestTimeout() );
+        mmt.setRequestDelay( asd.getRequestDelay() );
+        mmt.setMaxInFlight( asd.getMaxInFlight() );
         
         mmTreeModel.nodeChanged(mmt);
     }
@@ -449,14 +503,14 @@ implements ModbusPalListener
         // create a thread for eack task
         for(final ModbusMasterTask task : tasks)
         {
-            Thread t = new Thread( new Runnable()
+            Thread t = ThreadTools.newThread( new Runnable()
             {
                 @Override
                 public void run() 
                 {
                     task.run(link);
                 }
-            });
+            }, "master task");
             threads.add(t);
         }
         
@@ -466,6 +520,8 @@ implements ModbusPalListener
             t.start();
         }
         
+        statisticsTimer.start();
+        
     }
 
     public void stop()
@@ -478,6 +534,8 @@ implements ModbusPalListener
         
         threads.clear();
         isRunning = false;
+        statisticsTimer.stop();
+        updateStatistics();
         //addButton.setEnabled(true);
         //removeButton.setEnabled(true);        
         GUITools.setAllEnabled(getContentPane(), true);
@@ -4,11 +4,16 @@
  */
 package modbuspal.master;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import javax.swing.tree.DefaultMutableTreeNode;
+import modbuspal.main.ModbusConst;
 import modbuspal.main.ModbusPalGui;
 import modbuspal.main.ModbusPalProject;
 import modbuspal.slave.ModbusSlaveAddress;
 import modbuspal.toolkit.ModbusTools;
+import modbuspal.toolkit.XMLTools;
+import org.w3c.dom.Node;
 
 /**
  *
@@ -123,6 +128,7 @@ extends DefaultMutableTreeNode
     private int quantityToRead;
     private int writeStartAddress;
     private int quantityToWrite;
+    private int timeout = 0;
     
     public byte getFunctionCode()
     {
@@ -149,6 +155,111 @@ extends DefaultMutableTreeNode
         return quantityToWrite;
     }
     
+    /**
+     * Returns the time to wait for the reply to this request.
+     * @return timeout in milliseconds, or 0 if the timeout of the
+     * target applies.
+     */
+    public int getTimeout()
+    {
+        return timeout;
+    }
+    
+    /**
+     * Defines the time to wait for the reply to this request.
+     * @param ms timeout in milliseconds, or 0 to use the timeout of the
+     * target.
+     */
+    public void setTimeout(int ms)
+    {
+        timeout = Math.max(0, ms);
+    }
+    
+    /**
+     * Writes the settings of this request into the output stream, as an
+     * xml "request" tag.
+     * @param out the output stream
+     * @throws IOException 
+     */
+    void save(OutputStream out)
+    throws IOException
+    {
+        StringBuilder tag = new StringBuilder("<request");
+        tag.append(" function=\"").append(functionCode & 0xFF).append("\"");
+        tag.append(" read_address=\"").append(readStartAddress).append("\"");
+        tag.append(" read_quantity=\"").append(quantityToRead).append("\"");
+        tag.append(" write_address=\"").append(writeStartAddress).append("\"");
+        tag.append(" write_quantity=\"").append(quantityToWrite).append("\"");
+        tag.append(" timeout=\"").append(timeout).append("\"");
+        tag.append("/>\r\n");
+        out.write( tag.toString().getBytes() );
+    }
+    
+    /**
+     * Creates a request from a "request" or a "delay" xml node.
+     * @param node the xml node
+     * @return the request, or null if the function code is not supported
+     */
+    static ModbusMasterRequest load(Node node)
+    {
+        if( node.getNodeName().compareTo("delay")==0 )
+        {
+            return ModbusMasterDelay.getDelay( getInteger(node, "duration", 0) );
+        }
+        
+        int readAddress = getInteger(node, "read_address", 0);
+        int readQuantity = getInteger(node, "read_quantity", 0);
+        int writeAddress = getInteger(node, "write_address", 0);
+        int writeQuantity = getInteger(node, "write_quantity", 0);
+        
+        ModbusMasterRequest output;
+        switch( (byte)getInteger(node, "function", 0) )
+        {
+            case ModbusConst.FC_READ_COILS:
+                output = getReadCoilsRequest(readAddress, readQuantity);
+                break;
+            case ModbusConst.FC_READ_DISCRETE_INPUTS:
+                output = getReadDiscreteInputsRequest(readAddress, readQuantity);
+                break;
+            case ModbusConst.FC_READ_HOLDING_REGISTERS:
+                output = getReadHoldingRegistersRequest(readAddress, readQuantity);
+                break;
+            case ModbusConst.FC_WRITE_SINGLE_COIL:
+                output = getWriteSingleCoilRequest(writeAddress);
+                break;
+            case ModbusConst.FC_WRITE_SINGLE_REGISTER:
+                output = getWriteSingleRegisterRequest(writeAddress);
+                break;
+            case ModbusConst.FC_WRITE_MULTIPLE_COILS:
+                output = getWriteMultipleCoilsRequest(writeAddress, writeQuantity);
+                break;
+            case ModbusConst.FC_WRITE_MULTIPLE_REGISTERS:
+                output = getWriteMultipleRegistersRequest(writeAddress, writeQuantity);
+                break;
+            case ModbusConst.FC_READ_WRITE_MULTIPLE_REGISTERS:
+                output = getReadWriteMultipleRegistersRequest(readAddress, readQuantity, writeAddress, writeQuantity);
+                break;
+            default:
+                return null;
+        }
+        output.setTimeout( getInteger(node, "timeout", 0) );
+        return output;
+    }
+    
+    /**
+     * Reads an integer attribute of a node.
+     * @return the value of the attribute, or defaultValue if it is missing.
+     */
+    static int getInteger(Node node, String attr, int defaultValue)
+    {
+        String value = XMLTools.getAttribute(attr, node);
+        if( value == null )
+        {
+            return defaultValue;
+        }
+        return Integer.parseInt(value);
+    }
+    
     public void notifyPDUprocessed() {
         //throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
     }
@@ -4,12 +4,17 @@
  */
 package modbuspal.master;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import javax.swing.tree.DefaultMutableTreeNode;
 import modbuspal.slave.ModbusSlaveAddress;
+import modbuspal.toolkit.XMLTools;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
 
 /**
  *
@@ -21,6 +26,9 @@ extends DefaultMutableTreeNode
     private String targetName;
     private ModbusSlaveAddress[] targetList;
     private String targetListText;
+    private int requestTimeout = ModbusMasterTask.DEFAULT_REQUEST_TIMEOUT;
+    private int requestDelay = ModbusMasterTask.DEFAULT_REQUEST_DELAY;
+    private int maxInFlight = ModbusMasterTask.DEFAULT_TARGET_MAX_IN_FLIGHT;
     
     void setTargetName(String s) 
     {
@@ -54,4 +62,140 @@ extends DefaultMutableTreeNode
     {
         return targetListText;
     }
+    
+    /**
+     * Returns the time to wait for the reply to a request, unless the
+     * request defines its own timeout.
+     * @return timeout in milliseconds
+     */
+    public int getRequestTimeout()
+    {
+        return requestTimeout;
+    }
+    
+    /**
+     * Defines the time to wait for the reply to a request, unless the
+     * request defines its own timeout.
+     * @param ms timeout in milliseconds
+     */
+    public void setRequestTimeout(int ms)
+    {
+        requestTimeout = Math.max(1, ms);
+    }
+    
+    /**
+     * Returns the minimum delay between two requests sent to the same
+     * slave of this target; it limits the polling rate of each slave.
+     * @return delay in milliseconds
+     */
+    public int getRequestDelay()
+    {
+        return requestDelay;
+    }
+    
+    /**
+     * Defines the minimum delay between two requests sent to the same
+     * slave of this target.
+     * @param ms delay in milliseconds
+     */
+    public void setRequestDelay(int ms)
+    {
+        requestDelay = Math.max(0, ms);
+    }
+    
+    /**
+     * Returns the maximum number of requests that can be in progress at
+     * the same time for the slaves of this target.
+     * @return the maximum number of requests in progress
+     */
+    public int getMaxInFlight()
+    {
+        return maxInFlight;
+    }
+    
+    /**
+     * Defines the maximum number of requests that can be in progress at
+     * the same time for the slaves of this target. Takes effect at the
+     * next polling cycle.
+     * @param n the maximum number of requests in progress
+     */
+    public void setMaxInFlight(int n)
+    {
+        maxInFlight = Math.max(1, n);
+    }
+    
+    /**
+     * Writes the settings of this target, its slaves and its requests into
+     * the output stream, as an xml "target" tag.
+     * @param out the output stream
+     * @throws IOException 
+     */
+    void save(OutputStream out)
+    throws IOException
+    {
+        // the slaves of the list are separated by commas or new lines;
+        // the new lines would not survive in an attribute:
+        String slaves = (targetListText==null) ? "" : targetListText.trim().replaceAll("[\\r\\n]+", ",");
+        
+        StringBuilder tag = new StringBuilder("<target");
+        tag.append(" name=\"").append(targetName).append("\"");
+        tag.append(" slaves=\"").append(slaves).append("\"");
+        tag.append(" timeout=\"").append(requestTimeout).append("\"");
+        tag.append(" delay=\"").append(requestDelay).append("\"");
+        tag.append(" inflight=\"").append(maxInFlight).append("\"");
+        tag.append(">\r\n");
+        out.write( tag.toString().getBytes() );
+        
+        for(ModbusSlaveAddress slave : targetList)
+        {
+            String address = "<address id=\"" + slave.toString() + "\"/>\r\n";
+            out.write( address.getBytes() );
+        }
+        
+        for(int i=0; i<getChildCount(); i++)
+        {
+            ((ModbusMasterRequest)getChildAt(i)).save(out);
+        }
+        
+        out.write( "</target>\r\n".getBytes() );
+    }
+    
+    /**
+     * Creates a target, with its slaves and its requests, from a "target"
+     * xml node.
+     * @param node the xml node
+     * @return the target
+     */
+    static ModbusMasterTarget load(Node node)
+    {
+        ModbusMasterTarget output = new ModbusMasterTarget();
+        output.setTargetName( XMLTools.getAttribute("name", node) );
+        output.setTargetListAsText( XMLTools.getAttribute("slaves", node) );
+        output.setRequestTimeout( ModbusMasterRequest.getInteger(node, "timeout", ModbusMasterTask.DEFAULT_REQUEST_TIMEOUT) );
+        output.setRequestDelay( ModbusMasterRequest.getInteger(node, "delay", ModbusMasterTask.DEFAULT_REQUEST_DELAY) );
+        output.setMaxInFlight( ModbusMasterRequest.getInteger(node, "inflight", ModbusMasterTask.DEFAULT_TARGET_MAX_IN_FLIGHT) );
+        
+        // the slaves and the requests, in the order of the file:
+        ArrayList<ModbusSlaveAddress> slaves = new ArrayList<ModbusSlaveAddress>();
+        NodeList children = node.getChildNodes();
+        for(int i=0; i<children.getLength(); i++)
+        {
+            Node child = children.item(i);
+            String name = child.getNodeName();
+            if( name.compareTo("address")==0 )
+            {
+                slaves.add( ModbusSlaveAddress.parse( XMLTools.getAttribute("id", child) ) );
+            }
+            else if( (name.compareTo("request")==0) || (name.compareTo("delay")==0) )
+            {
+                ModbusMasterRequest mmr = ModbusMasterRequest.load(child);
+                if( mmr != null )
+                {
+                    output.add(mmr);
+                }
+            }
+        }
+        output.setTargetList( slaves.toArray(new ModbusSlaveAddress[slaves.size()]) );
+        return output;
+    }
 }
@@ -5,29 +5,172 @@
 package modbuspal.master;
 
 import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.swing.JTree;
+import javax.swing.SwingUtilities;
 import javax.swing.tree.DefaultMutableTreeNode;
 import javax.swing.tree.TreePath;
 import javax.swing.tree.TreeSelectionModel;
 import modbuspal.link.ModbusLink;
 import modbuspal.slave.ModbusSlaveAddress;
+import modbuspal.toolkit.ThreadTools;
+import modbuspal.toolkit.XMLTools;
+import org.w3c.dom.Node;
 
 /**
- *
+ * A polling task of the master. At each cycle, the requests of each target
+ * are sent to all the slaves of the target. The slaves are polled
+ * concurrently, each one by its own worker, which sends the requests in
+ * order and waits at least the request delay of the target between two
+ * requests. The number of requests in progress at the same time is
+ * limited for each target, and the whole task has an upper bound too.
+ * The cycle ends when all the slaves have been polled.
+ * <p>
+ * A delay ({@link ModbusMasterDelay}) only pauses the worker that polls
+ * one slave: the following requests of the target to that slave are sent
+ * after the delay, but the other slaves are still polled meanwhile. A
+ * delay does not space out the traffic on the link anymore.
+ * <p>
+ * The requests in progress are shown as selected in the tree of the
+ * master dialog; the selection is only modified by the event dispatch
+ * thread.
  * @author nnovic
  */
 public class ModbusMasterTask 
 extends DefaultMutableTreeNode
 {
-    private static final int REQUEST_TIMEOUT = 1000;
-    private static final long DELAY_BETWEEN_REQUESTS = 100;
+    /** name of the system property that defines the default timeout of the requests, in milliseconds */
+    public static final String REQUEST_TIMEOUT_PROPERTY = "modbuspal.master.timeout";
+    
+    /** name of the system property that defines the default delay between two requests to the same slave, in milliseconds */
+    public static final String REQUEST_DELAY_PROPERTY = "modbuspal.master.delay";
+    
+    /** name of the system property that defines the default number of requests in progress at the same time for a task */
+    public static final String MAX_IN_FLIGHT_PROPERTY = "modbuspal.master.inflight";
+    
+    /** name of the system property that defines the default number of requests in progress at the same time for a target */
+    public static final String TARGET_MAX_IN_FLIGHT_PROPERTY = "modbuspal.master.target.inflight";
+    
+    static final int DEFAULT_MAX_IN_FLIGHT = Math.max(1, Integer.getInteger(MAX_IN_FLIGHT_PROPERTY, 16));
+    static final int DEFAULT_TARGET_MAX_IN_FLIGHT = Math.max(1, Integer.getInteger(TARGET_MAX_IN_FLIGHT_PROPERTY, 4));
+    static final int DEFAULT_REQUEST_TIMEOUT = Integer.getInteger(REQUEST_TIMEOUT_PROPERTY, 1000);
+    static final int DEFAULT_REQUEST_DELAY = Integer.getInteger(REQUEST_DELAY_PROPERTY, 100);
     public static final String DEFAULT_NAME = "unnamed task";
     
     private String taskName =  DEFAULT_NAME;
-    private TreeSelectionModel treeSelectionModel = null;
+    private volatile TreeSelectionModel treeSelectionModel = null;
+    private int maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+    
+    // number of executions in progress for each selected node; only
+    // accessed by the event dispatch thread:
+    private final HashMap<DefaultMutableTreeNode,Integer> selectionCounts = new HashMap<DefaultMutableTreeNode,Integer>();
+    
+    // cycle time statistics:
+    private volatile long cycleCount = 0;
+    private volatile long lastCycleTime = 0;
+    private volatile long totalCycleTime = 0;
+    
+    
+    /**
+     * Polls one slave of a target: sends the requests of the target, one
+     * after the other.
+     */
+    private class SlavePoller
+    implements Runnable
+    {
+        private final ModbusLink link;
+        private final ModbusMasterTarget target;
+        private final ModbusSlaveAddress slave;
+        private final List<ModbusMasterRequest> requests;
+        private final Semaphore targetInFlight;
+        private final Semaphore taskInFlight;
+        private CountDownLatch done = null;
+        
+        SlavePoller(ModbusLink l, ModbusMasterTarget t, ModbusSlaveAddress s, List<ModbusMasterRequest> r, Semaphore tf, Semaphore f)
+        {
+            link = l;
+            target = t;
+            slave = s;
+            requests = r;
+            targetInFlight = tf;
+            taskInFlight = f;
+        }
+        
+        @Override
+        public void run()
+        {
+            try
+            {
+                long delay = TimeUnit.MILLISECONDS.toNanos( target.getRequestDelay() );
+                long next = System.nanoTime();
+                for(ModbusMasterRequest mmr : requests)
+                {
+                    if( mmr instanceof ModbusMasterDelay )
+                    {
+                        // only this slave waits; the other pollers go on:
+                        Thread.sleep( ((ModbusMasterDelay)mmr).getDelay() );
+                        next = System.nanoTime();
+                        continue;
+                    }
+                    
+                    // respect the polling rate of the target:
+                    TimeUnit.NANOSECONDS.sleep( next - System.nanoTime() );
+                    next = System.nanoTime() + delay;
+                    
+                    int timeout = mmr.getTimeout();
+                    if( timeout == 0 )
+                    {
+                        timeout = target.getRequestTimeout();
+                    }
+                    
+                    targetInFlight.acquire();
+                    try
+                    {
+                        taskInFlight.acquire();
+                        select(mmr);
+                        try
+                        {
+                            link.execute(slave, mmr, timeout);
+                        }
+                        catch (IOException ex)
+                        {
+                            Logger.getLogger(ModbusMasterTask.class.getName()).log(Level.SEVERE, null, ex);
+                        }
+                        finally
+                        {
+                            taskInFlight.release();
+                            unselect(mmr);
+                        }
+                    }
+                    finally
+                    {
+                        targetInFlight.release();
+                    }
+                }
+                
+                // the next cycle must also respect the polling rate:
+                TimeUnit.NANOSECONDS.sleep( next - System.nanoTime() );
+            }
+            catch(InterruptedException ex)
+            {
+                // the task is stopped
+            }
+            finally
+            {
+                done.countDown();
+            }
+        }
+    }
     
     
     public ModbusMasterTask()
@@ -57,112 +200,229 @@ extends DefaultMutableTreeNode
         return taskName;
     }
     
-    private void select(DefaultMutableTreeNode tn)
+    /**
+     * Returns the maximum number of requests that this task can have in
+     * progress at the same time, all targets included. Each target has
+     * its own limit too, see ModbusMasterTarget.getMaxInFlight().
+     * @return the maximum number of requests in progress
+     */
+    public int getMaxInFlight()
     {
-        try
+        return maxInFlight;
+    }
+    
+    /**
+     * Defines the maximum number of requests that this task can have in
+     * progress at the same time. Takes effect when the task is started.
+     * @param n the maximum number of requests in progress
+     */
+    public void setMaxInFlight(int n)
+    {
+        maxInFlight = Math.max(1, n);
+    }
+    
+    /**
+     * Returns the number of cycles completed since the task was started.
+     * @return the number of cycles
+     */
+    public long getCycleCount()
+    {
+        return cycleCount;
+    }
+    
+    /**
+     * Returns the duration of the last complete cycle.
+     * @return the duration of the last cycle, in milliseconds
+     */
+    public long getLastCycleTime()
+    {
+        return TimeUnit.NANOSECONDS.toMillis(lastCycleTime);
+    }
+    
+    /**
+     * Returns the average duration of the cycles since the task was started.
+     * @return the average duration of a cycle, in milliseconds
+     */
+    public long getAverageCycleTime()
+    {
+        return TimeUnit.NANOSECONDS.toMillis( totalCycleTime / Math.max(1, cycleCount) );
+    }
+    
+    /**
+     * Writes the settings of this task, its targets and their requests into
+     * the output stream, as an xml "task" tag.
+     * @param out the output stream
+     * @throws IOException 
+     */
+    public void save(OutputStream out)
+    throws IOException
+    {
+        StringBuilder tag = new StringBuilder("<task");
+        tag.append(" name=\"").append(taskName).append("\"");
+        tag.append(" inflight=\"").append(maxInFlight).append("\"");
+        tag.append(">\r\n");
+        out.write( tag.toString().getBytes() );
+        
+        for(int i=0; i<getChildCount(); i++)
         {
-            synchronized(treeSelectionModel)
-            {
-                TreePath tp = new TreePath(tn.getPath());
-                treeSelectionModel.addSelectionPath( tp );
-            }
+            ((ModbusMasterTarget)getChildAt(i)).save(out);
         }
-        catch(Exception e)
+        
+        out.write( "</task>\r\n".getBytes() );
+    }
+    
+    /**
+     * Creates a task, with its targets and their requests, from a "task"
+     * xml node.
+     * @param node the xml node
+     * @return the task
+     */
+    public static ModbusMasterTask load(Node node)
+    {
+        ModbusMasterTask output = new ModbusMasterTask();
+        output.setTaskName( XMLTools.getAttribute("name", node) );
+        output.setMaxInFlight( ModbusMasterRequest.getInteger(node, "inflight", DEFAULT_MAX_IN_FLIGHT) );
+        for(Node child : XMLTools.findChildren(node, "target"))
         {
-            e.printStackTrace();
+            output.add( ModbusMasterTarget.load(child) );
         }
+        return output;
     }
     
-    private void unselect(DefaultMutableTreeNode tn)
+    /**
+     * Adds a node to the selection of the tree, from the event dispatch
+     * thread. The node stays selected until all the executions that
+     * selected it have called unselect().
+     */
+    private void select(final DefaultMutableTreeNode tn)
     {
-        try
+        SwingUtilities.invokeLater( new Runnable()
         {
-            synchronized(treeSelectionModel)
+            @Override
+            public void run()
             {
-            TreePath tp = new TreePath(tn.getPath());
-            treeSelectionModel.removeSelectionPath( tp );
+                Integer count = selectionCounts.get(tn);
+                if( count != null )
+                {
+                    selectionCounts.put(tn, count+1);
+                    return;
+                }
+                selectionCounts.put(tn, 1);
+                
+                TreeSelectionModel tsm = treeSelectionModel;
+                if( tsm != null )
+                {
+                    tsm.addSelectionPath( new TreePath(tn.getPath()) );
+                }
             }
-        }
-        catch(Exception e)
-        {
-            e.printStackTrace();
-        }
-    }    
-    
+        });
+    }
     
-    private void executeRequest(ModbusLink link, ModbusMasterRequest mmr, ModbusMasterTarget mmt)
-    throws InterruptedException
+    /**
+     * Removes a node from the selection of the tree, from the event
+     * dispatch thread, if no other execution is using it.
+     */
+    private void unselect(final DefaultMutableTreeNode tn)
     {
-        if( mmr instanceof ModbusMasterDelay )
-        {
-            int delayMs = ((ModbusMasterDelay)mmr).getDelay();
-            Thread.sleep( delayMs );
-
-        }
-        else
-
+        SwingUtilities.invokeLater( new Runnable()
         {
-            // enumerate all modbus slaves in the target
-            List<ModbusSlaveAddress> targets = mmt.getTargetList();
-
-            for(ModbusSlaveAddress target : targets)
+            @Override
+            public void run()
             {
-                try 
+                Integer count = selectionCounts.get(tn);
+                if( (count != null) && (count > 1) )
                 {
-                    // send the modbus request to all
-                    // the slaves
-                    link.execute(target, mmr, REQUEST_TIMEOUT);
-                } 
-                catch (IOException ex) 
+                    selectionCounts.put(tn, count-1);
+                    return;
+                }
+                selectionCounts.remove(tn);
+                
+                TreeSelectionModel tsm = treeSelectionModel;
+                if( tsm != null )
                 {
-                    Logger.getLogger(ModbusMasterTask.class.getName()).log(Level.SEVERE, null, ex);
+                    tsm.removeSelectionPath( new TreePath(tn.getPath()) );
                 }
-
-                Thread.sleep(DELAY_BETWEEN_REQUESTS);
-            } 
-        }        
+            }
+        });
     }
     
     
-    private void modbusMasterTaskBody(ModbusLink link) 
+    private void modbusMasterTaskBody(ModbusLink link, ExecutorService workers, Semaphore inFlight) 
     throws InterruptedException
     {
-        // retrieve list of targets
+        // create a poller for each slave of each target:
+        ArrayList<SlavePoller> pollers = new ArrayList<SlavePoller>();
         for(int i=0; i<getChildCount(); i++)
         {
             ModbusMasterTarget mmt = (ModbusMasterTarget)getChildAt(i);
 
             // enumerate all modbus requests for this target
+            ArrayList<ModbusMasterRequest> requests = new ArrayList<ModbusMasterRequest>();
             for(int j=0; j<mmt.getChildCount(); j++)
             {
-                ModbusMasterRequest mmr = (ModbusMasterRequest)mmt.getChildAt(j);                    
-                select(mmr);
+                requests.add( (ModbusMasterRequest)mmt.getChildAt(j) );
+            }
 
-                try
-                {
-                    executeRequest(link, mmr, mmt);
-                }
-                finally
-                {
-                    unselect(mmr);
-                }
+            // the requests in progress for the slaves of this target are
+            // limited by its own semaphore; all the pollers of the target
+            // are done at the end of the cycle, so a new one is created for
+            // each cycle:
+            Semaphore targetInFlight = new Semaphore( mmt.getMaxInFlight() );
+            for(ModbusSlaveAddress slave : mmt.getTargetList())
+            {
+                pollers.add( new SlavePoller(link, mmt, slave, requests, targetInFlight, inFlight) );
             }
-        }        
+        }
+        
+        if( pollers.isEmpty() )
+        {
+            Thread.sleep(DEFAULT_REQUEST_DELAY);
+            return;
+        }
+        
+        // poll all the slaves concurrently, and wait for the end of the cycle:
+        CountDownLatch done = new CountDownLatch(pollers.size());
+        for(SlavePoller poller : pollers)
+        {
+            poller.done = done;
+            workers.execute(poller);
+        }
+        done.await();
     }
     
     
     public void run(ModbusLink link)
     {
-        while( Thread.interrupted()==false )
+        ExecutorService workers = ThreadTools.newExecutor("master task");
+        Semaphore inFlight = new Semaphore(maxInFlight);
+        cycleCount = 0;
+        totalCycleTime = 0;
+        lastCycleTime = 0;
+        
+        try
         {
-            try
-            {
-                modbusMasterTaskBody(link);
-            }
-            catch(InterruptedException ex)
+            while( Thread.interrupted()==false )
             {
-                break;
+                long start = System.nanoTime();
+                modbusMasterTaskBody(link, workers, inFlight);
+                long end = System.nanoTime();
+                
+                lastCycleTime = end - start;
+                totalCycleTime += lastCycleTime;
+                cycleCount++;
             }
         }
+        catch(InterruptedException ex)
+        {
+            // the task is stopped
+        }
+        catch(RejectedExecutionException ex)
+        {
+            // the task is stopped
+        }
+        finally
+        {
+            workers.shutdownNow();
+        }
     }
 }
@@ -23,10 +23,21 @@ extends javax.swing.JDialog
     {
         setModalityType(ModalityType.DOCUMENT_MODAL);
         initComponents();
+        jSpinner2.setToolTipText("0: use the timeout of the target");
     }
 
     
     ModbusMasterRequest getRequest()
+    {
+        ModbusMasterRequest output = createRequest();
+        if( output != null )
+        {
+            output.setTimeout( (Integer)jSpinner2.getValue() );
+        }
+        return output;
+    }
+    
+    private ModbusMasterRequest createRequest()
     {
         if( actionSelectorTabbedPane.getSelectedComponent()==x01_readCoilsPanel )
         {
@@ -597,6 +608,8 @@ extends javax.swing.JDialog
 
     void initializeWith(ModbusMasterRequest mmr) 
     {
+        jSpinner2.setValue( mmr.getTimeout() );
+        
         if( mmr instanceof ModbusMasterDelay )
         {
             ModbusMasterDelay mmd = (ModbusMasterDelay)mmr;
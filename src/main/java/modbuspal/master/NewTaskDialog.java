@@ -13,6 +13,7 @@ extends javax.swing.JDialog
 {
 
     private boolean isOK = false;
+    private final javax.swing.JSpinner inFlightSpinner = new javax.swing.JSpinner();
     
     /**
      * Creates new form NewTaskDialog
@@ -21,6 +22,35 @@ extends javax.swing.JDialog
     {
         super(parent, modal);
         initComponents();
+        initInFlightSpinner();
+    }
+    
+    /**
+     * Adds the setting of the maximum number of requests in progress
+     * below the name of the task.
+     */
+    private void initInFlightSpinner()
+    {
+        java.awt.GridBagConstraints gridBagConstraints;
+        
+        javax.swing.JLabel label = new javax.swing.JLabel("Max. requests in progress:");
+        gridBagConstraints = new java.awt.GridBagConstraints();
+        gridBagConstraints.gridx = 0;
+        gridBagConstraints.gridy = 1;
+        gridBagConstraints.anchor = java.awt.GridBagConstraints.LINE_END;
+        gridBagConstraints.insets = new java.awt.Insets(5, 5, 5, 2);
+        mainPanel.add(label, gridBagConstraints);
+        
+        inFlightSpinner.setModel( new javax.swing.SpinnerNumberModel(ModbusMasterTask.DEFAULT_MAX_IN_FLIGHT, 1, 1000, 1) );
+        inFlightSpinner.setToolTipText("for the whole task; each target has its own limit too");
+        gridBagConstraints = new java.awt.GridBagConstraints();
+        gridBagConstraints.gridx = 1;
+        gridBagConstraints.gridy = 1;
+        gridBagConstraints.anchor = java.awt.GridBagConstraints.LINE_START;
+        gridBagConstraints.insets = new java.awt.Insets(5, 2, 5, 5);
+        mainPanel.add(inFlightSpinner, gridBagConstraints);
+        
+        pack();
     }
 
     /**
@@ -109,9 +139,15 @@ extends javax.swing.JDialog
     {
         return jTextField1.getText();
     }
+    
+    int getMaxInFlight()
+    {
+        return (Integer)inFlightSpinner.getValue();
+    }
 
     void initializeWith(ModbusMasterTask mmt) 
     {
         jTextField1.setText( mmt.getTaskName() );
+        inFlightSpinner.setValue( mmt.getMaxInFlight() );
     }
 }
@@ -0,0 +1,429 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package modbuspal.recorder;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import modbuspal.slave.ModbusSlaveAddress;
+import modbuspal.toolkit.ThreadTools;
+
+/**
+ * Writes the traffic of a recording session into a file, without slowing
+ * down the threads that process the requests. The records are copied into
+ * a bounded ring buffer, without lock nor allocation; a background thread
+ * takes them out of the ring and writes them into the file. If the ring is
+ * full, because the disk cannot keep up, the record is dropped and counted
+ * instead of blocking the caller.
+ * <p>
+ * Two formats are supported: the text format of the .xmpr files, that the
+ * replay link reads, and a compact binary format (.xmpj) described in
+ * ModbusPalJournalReader. When the file reaches the maximum size, it is
+ * closed and the recording continues in a new file, whose name is suffixed
+ * with a sequence number.
+ * @author nnovic
+ */
+class ModbusPalJournal
+implements Runnable
+{
+    /** name of the system property that defines the number of records of the ring buffer */
+    static final String CAPACITY_PROPERTY = "modbuspal.recorder.capacity";
+
+    /** name of the system property that defines the maximum size of a file, in bytes */
+    static final String MAX_SIZE_PROPERTY = "modbuspal.recorder.maxsize";
+
+    /** magic number at the beginning of a binary journal */
+    static final byte MAGIC[] = {'M','P','J','1'};
+
+    /** size of the data of a record; larger PDUs are truncated */
+    static final int MAX_DATA_LENGTH = 256;
+
+    private static final char HEXA[] = "0123456789abcdef".toCharArray();
+
+    // the writer waits for 1 ms when the ring is empty, twice as long each
+    // time it is still empty, up to 100 ms:
+    private static final long MIN_IDLE_PARK = 1000000L;
+    private static final long MAX_IDLE_PARK = 100000000L;
+
+    private final File file;
+    private final boolean binary;
+    private final long maxSize;
+    private final long startTime = System.nanoTime();
+
+    // the ring buffer:
+    private final int mask;
+    private final AtomicLongArray sequences;
+    private final byte types[];
+    private final long timestamps[];
+    private final ModbusSlaveAddress slaves[];
+    private final byte data[][];
+    private final int lengths[];
+    private final AtomicLong tail = new AtomicLong();
+    private long head = 0;
+    private final AtomicLong dropped = new AtomicLong();
+
+    // the writer:
+    private volatile boolean running = true;
+    private volatile boolean idle = false;
+    private final Thread writerThread;
+    private OutputStream output;
+    private long written;
+    private int fileCount = 0;
+    // header of a binary record: type, timestamp, rtu address, ip address
+    // (up to 16 bytes for IPv6) and length:
+    private final byte line[] = new byte[1 + 8 + 1 + 1 + 16 + 2];
+    private final TextLine textLine = new TextLine();
+
+    /**
+     * Creates the journal and starts the background writer.
+     * @param f the file where the records are written. If its extension is
+     * "xmpj", the binary format is used; otherwise the text format is used.
+     * @throws IOException if the file cannot be created
+     */
+    ModbusPalJournal(File f)
+    throws IOException
+    {
+        file = f;
+        binary = ModbusPalJournalReader.isJournal(f);
+        maxSize = Long.getLong(MAX_SIZE_PROPERTY, 0);
+
+        int capacity = Integer.highestOneBit( Math.max(2, Integer.getInteger(CAPACITY_PROPERTY, 8192)) );
+        mask = capacity-1;
+        sequences = new AtomicLongArray(capacity);
+        for( int i=0; i<capacity; i++ )
+        {
+            sequences.set(i, i);
+        }
+        types = new byte[capacity];
+        timestamps = new long[capacity];
+        slaves = new ModbusSlaveAddress[capacity];
+        data = new byte[capacity][MAX_DATA_LENGTH];
+        lengths = new int[capacity];
+
+        open(file);
+        writerThread = ThreadTools.start(this, "recorder");
+    }
+
+    /**
+     * Adds a record into the ring buffer. Can be called by several threads
+     * at the same time; never blocks.
+     * @param type RECORD_IN or RECORD_OUT
+     * @param slaveID the slave associated with the record
+     * @param buffer buffer containing the pdu
+     * @param offset offset where the pdu starts in the buffer
+     * @param pduLength the length of the pdu
+     */
+    void record(int type, ModbusSlaveAddress slaveID, byte[] buffer, int offset, int pduLength)
+    {
+        long timestamp = System.nanoTime() - startTime;
+
+        // reserve a slot:
+        long pos = tail.get();
+        int slot;
+        while( true )
+        {
+            slot = (int)(pos & mask);
+            long diff = sequences.get(slot) - pos;
+            if( diff == 0 )
+            {
+                if( tail.compareAndSet(pos, pos+1) == true )
+                {
+                    break;
+                }
+                pos = tail.get();
+            }
+            else if( diff < 0 )
+            {
+                // the ring is full
+                dropped.incrementAndGet();
+                return;
+            }
+            else
+            {
+                pos = tail.get();
+            }
+        }
+
+        // fill the slot, then publish it:
+        int length = Math.min(Math.max(pduLength,0), MAX_DATA_LENGTH);
+        types[slot] = (byte)type;
+        timestamps[slot] = timestamp;
+        slaves[slot] = slaveID;
+        lengths[slot] = length;
+        System.arraycopy(buffer, offset, data[slot], 0, length);
+        sequences.lazySet(slot, pos+1);
+
+        // wake up the writer if it is waiting for records:
+        if( idle == true )
+        {
+            idle = false;
+            LockSupport.unpark(writerThread);
+        }
+    }
+
+    /**
+     * Returns the number of records that have been dropped because the
+     * ring buffer was full.
+     * @return the number of dropped records
+     */
+    long getDroppedRecords()
+    {
+        return dropped.get();
+    }
+
+    /**
+     * Stops the background writer, after it has written all the records
+     * that are in the ring buffer, and closes the file.
+     */
+    void close()
+    {
+        running = false;
+        LockSupport.unpark(writerThread);
+        try
+        {
+            writerThread.join();
+        }
+        catch (InterruptedException ex)
+        {
+            Logger.getLogger(ModbusPalJournal.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
+    /**
+     * Writes the records until close() is called. When the ring is empty,
+     * the writer waits longer and longer, so that an idle recording does
+     * not wake it up every millisecond; record() wakes it up as soon as a
+     * new record is available.
+     */
+    @Override
+    public void run()
+    {
+        long park = MIN_IDLE_PARK;
+        try
+        {
+            while( true )
+            {
+                // test the flag before draining, so that the records
+                // published before close() are always written:
+                boolean stop = (running==false);
+                if( drain() > 0 )
+                {
+                    park = MIN_IDLE_PARK;
+                    continue;
+                }
+                if( stop == true )
+                {
+                    break;
+                }
+                output.flush();
+
+                // announce that the writer is idle, then check the ring
+                // again so that a record published in the meantime is not
+                // left waiting:
+                idle = true;
+                if( isEmpty() == true )
+                {
+                    LockSupport.parkNanos(park);
+                }
+                idle = false;
+                park = Math.min(2*park, MAX_IDLE_PARK);
+            }
+        }
+        catch (IOException ex)
+        {
+            Logger.getLogger(ModbusPalJournal.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        catch (RuntimeException ex)
+        {
+            Logger.getLogger(ModbusPalJournal.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        finally
+        {
+            try
+            {
+                output.close();
+            }
+            catch (IOException ex)
+            {
+                Logger.getLogger(ModbusPalJournal.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+
+        if( dropped.get() > 0 )
+        {
+            System.out.println("recorder: "+dropped.get()+" records dropped");
+        }
+    }
+
+    private boolean isEmpty()
+    {
+        return sequences.get( (int)(head & mask) ) != head+1;
+    }
+
+    /**
+     * Writes the records that are available in the ring buffer.
+     * @return the number of records written
+     */
+    private int drain()
+    throws IOException
+    {
+        int count = 0;
+        while( true )
+        {
+            int slot = (int)(head & mask);
+            if( sequences.get(slot) != head+1 )
+            {
+                return count;
+            }
+
+            if( binary == true )
+            {
+                writeBinary(slot);
+            }
+            else
+            {
+                writeText(slot);
+            }
+
+            // release the slot:
+            slaves[slot] = null;
+            sequences.lazySet(slot, head+mask+1);
+            head++;
+            count++;
+
+            if( (maxSize>0) && (written>=maxSize) )
+            {
+                rotate();
+            }
+        }
+    }
+
+    private void open(File f)
+    throws IOException
+    {
+        output = new BufferedOutputStream( new FileOutputStream(f), 65536 );
+        written = 0;
+        if( binary == true )
+        {
+            output.write(MAGIC);
+            written = MAGIC.length;
+        }
+    }
+
+    private void rotate()
+    throws IOException
+    {
+        output.close();
+        fileCount++;
+
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        if( dot < 0 )
+        {
+            dot = name.length();
+        }
+        String next = name.substring(0,dot) + "-" + fileCount + name.substring(dot);
+        open( new File(file.getParentFile(), next) );
+    }
+
+    private void writeBinary(int slot)
+    throws IOException
+    {
+        ModbusSlaveAddress slave = slaves[slot];
+        int rtu = slave.getRtuAddress();
+        InetAddress ip = slave.getIpAddress();
+        byte ipBytes[] = (ip==null) ? null : ip.getAddress();
+        int length = lengths[slot];
+        long timestamp = timestamps[slot];
+
+        int n = 0;
+        line[n++] = types[slot];
+        for( int i=56; i>=0; i-=8 )
+        {
+            line[n++] = (byte)(timestamp >>> i);
+        }
+        line[n++] = (byte)( (rtu==-1) ? 0 : rtu );
+        if( ipBytes == null )
+        {
+            line[n++] = 0;
+        }
+        else
+        {
+            line[n++] = (byte)ipBytes.length;
+            System.arraycopy(ipBytes, 0, line, n, ipBytes.length);
+            n += ipBytes.length;
+        }
+        line[n++] = (byte)(length >> 8);
+        line[n++] = (byte)length;
+        output.write(line, 0, n);
+        output.write(data[slot], 0, length);
+        written += n + length;
+    }
+
+    private void writeText(int slot)
+    throws IOException
+    {
+        textLine.format(types[slot], timestamps[slot]/1000000, slaves[slot], data[slot], lengths[slot]);
+        output.write(textLine.bytes, 0, textLine.length);
+        written += textLine.length;
+    }
+
+    /**
+     * A line of a .xmpr file. The length of the header depends on the
+     * slave address, so the buffer is sized for each line; it is kept for
+     * the next lines.
+     */
+    static final class TextLine
+    {
+        byte bytes[] = new byte[64 + 2*MAX_DATA_LENGTH];
+        int length = 0;
+
+        /**
+         * Formats a record as a line of a .xmpr file.
+         * @param type the type of the record, RECORD_IN or RECORD_OUT
+         * @param timestamp the timestamp of the record, in milliseconds
+         * @param slave the address of the slave
+         * @param pdu the buffer that contains the pdu
+         * @param pduLength the length of the pdu
+         */
+        void format(int type, long timestamp, ModbusSlaveAddress slave, byte[] pdu, int pduLength)
+        {
+            String tag = (type==ModbusPalRecord.RECORD_IN) ? "in" : "out";
+            String head = "<"+tag+" timestamp="+timestamp+" slave="+slave+">";
+            String tail = "</"+tag+">\r\n";
+            int size = head.length() + 2*pduLength + tail.length();
+            if( bytes.length < size )
+            {
+                bytes = new byte[size];
+            }
+
+            int n = ascii(bytes, 0, head);
+            for( int i=0; i<pduLength; i++ )
+            {
+                bytes[n++] = (byte)HEXA[ (pdu[i]>>4) & 0x0F ];
+                bytes[n++] = (byte)HEXA[ pdu[i] & 0x0F ];
+            }
+            length = ascii(bytes, n, tail);
+        }
+    }
+
+    private static int ascii(byte[] line, int n, String s)
+    {
+        for( int i=0; i<s.length(); i++ )
+        {
+            line[n++] = (byte)s.charAt(i);
+        }
+        return n;
+    }
+}
@@ -0,0 +1,257 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package modbuspal.recorder;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.util.Arrays;
+import modbuspal.slave.ModbusSlaveAddress;
+import modbuspal.toolkit.XFileChooser;
+
+/**
+ * Reads the records of a binary journal (.xmpj file), one after the other.
+ * The file starts with the 4 bytes "MPJ1"; then each record is made of:
+ * <ul>
+ * <li>1 byte: the type of the record (RECORD_IN or RECORD_OUT)</li>
+ * <li>8 bytes: the timestamp, in nanoseconds since the recording started</li>
+ * <li>1 byte: the rtu address of the slave, 0 if none</li>
+ * <li>1 byte: the length of the ip address of the slave, 0 if none,
+ * followed by the bytes of the ip address</li>
+ * <li>2 bytes: the length of the pdu, followed by the bytes of the pdu</li>
+ * </ul>
+ * All the numbers are big endian. This class can also be run from the
+ * command line, in order to convert a binary journal into a .xmpr file:
+ * <pre>java -cp ModbusPal.jar modbuspal.recorder.ModbusPalJournalReader input.xmpj output.xmpr</pre>
+ * @author nnovic
+ */
+public class ModbusPalJournalReader
+{
+    private final DataInputStream input;
+    private int recordType = 0;
+    private long recordTimestamp = 0;
+    private ModbusSlaveAddress recordSlave = null;
+    private final byte recordData[] = new byte[ModbusPalJournal.MAX_DATA_LENGTH];
+    private int recordDataLength = 0;
+
+    /**
+     * Opens a binary journal.
+     * @param f the file to read
+     * @throws IOException if the file cannot be read, or is not a binary journal
+     */
+    public ModbusPalJournalReader(File f)
+    throws IOException
+    {
+        input = new DataInputStream( new BufferedInputStream( new FileInputStream(f), 65536 ) );
+        byte magic[] = new byte[ModbusPalJournal.MAGIC.length];
+        try
+        {
+            input.readFully(magic);
+        }
+        catch(EOFException ex)
+        {
+            magic = null;
+        }
+        if( Arrays.equals(magic, ModbusPalJournal.MAGIC)==false )
+        {
+            input.close();
+            throw new IOException(f.getPath()+" is not a binary journal");
+        }
+    }
+
+    /**
+     * Checks if the file is a binary journal, by looking at its extension.
+     * @param f the file to check
+     * @return true if the file is a binary journal
+     */
+    public static boolean isJournal(File f)
+    {
+        return f.getName().toLowerCase().endsWith("."+XFileChooser.JOURNAL_EXT);
+    }
+
+    /**
+     * Reads the next record of the journal. The data of the record is then
+     * available through the getters of this object.
+     * @return false if the end of the journal is reached.
+     * @throws IOException if the file cannot be read or is corrupted
+     */
+    public boolean next()
+    throws IOException
+    {
+        int type = input.read();
+        if( type == -1 )
+        {
+            return false;
+        }
+
+        try
+        {
+            recordType = type;
+            recordTimestamp = input.readLong();
+
+            int rtu = input.readUnsignedByte();
+            InetAddress ip = null;
+            int ipLength = input.readUnsignedByte();
+            if( ipLength > 0 )
+            {
+                byte ipBytes[] = new byte[ipLength];
+                input.readFully(ipBytes);
+                ip = InetAddress.getByAddress(ipBytes);
+            }
+
+            if( ip == null )
+            {
+                recordSlave = new ModbusSlaveAddress(rtu);
+            }
+            else if( rtu == 0 )
+            {
+                recordSlave = new ModbusSlaveAddress(ip);
+            }
+            else
+            {
+                recordSlave = new ModbusSlaveAddress(ip, rtu);
+            }
+
+            recordDataLength = input.readUnsignedShort();
+            if( recordDataLength > recordData.length )
+            {
+                throw new IOException("corrupted journal: record of "+recordDataLength+" bytes");
+            }
+            input.readFully(recordData, 0, recordDataLength);
+        }
+        catch(EOFException ex)
+        {
+            // the last record is incomplete, probably because the
+            // recording was interrupted.
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Gets the type of the current record. One of RECORD_IN or RECORD_OUT.
+     * @return the type of the record.
+     */
+    public int getType()
+    {
+        return recordType;
+    }
+
+    /**
+     * Gets the timestamp of the current record, in nanoseconds since the
+     * beginning of the recording.
+     * @return timestamp of the record
+     */
+    public long getTimestamp()
+    {
+        return recordTimestamp;
+    }
+
+    /**
+     * Gets the slave associated with the current record.
+     * @return slave associated with the record
+     */
+    public ModbusSlaveAddress getSlaveID()
+    {
+        return recordSlave;
+    }
+
+    /**
+     * Returns the pdu of the current record. The buffer is reused by the
+     * next call to next().
+     * @return the pdu of the record
+     */
+    public byte[] getData()
+    {
+        return recordData;
+    }
+
+    /**
+     * Returns the size of the pdu of the current record.
+     * @return size of the pdu
+     */
+    public int getDataLength()
+    {
+        return recordDataLength;
+    }
+
+    /**
+     * Closes the file.
+     * @throws IOException
+     */
+    public void close()
+    throws IOException
+    {
+        input.close();
+    }
+
+    /**
+     * Converts a binary journal into a .xmpr file, that can be read by the
+     * replay link.
+     * @param source the binary journal
+     * @param dest the .xmpr file to create
+     * @return the number of records converted
+     * @throws IOException
+     */
+    public static int convert(File source, File dest)
+    throws IOException
+    {
+        ModbusPalJournalReader reader = new ModbusPalJournalReader(source);
+        OutputStream output = null;
+        int count = 0;
+        try
+        {
+            output = new BufferedOutputStream( new FileOutputStream(dest), 65536 );
+            ModbusPalJournal.TextLine line = new ModbusPalJournal.TextLine();
+            while( reader.next() == true )
+            {
+                line.format(reader.getType(), reader.getTimestamp()/1000000, reader.getSlaveID(), reader.getData(), reader.getDataLength());
+                output.write(line.bytes, 0, line.length);
+                count++;
+            }
+        }
+        finally
+        {
+            reader.close();
+            if( output != null )
+            {
+                output.close();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Converts a binary journal into a .xmpr file.
+     * @param args the path of the binary journal, and the path of the .xmpr file
+     */
+    public static void main(String[] args)
+    {
+        if( args.length != 2 )
+        {
+            System.err.println("usage: ModbusPalJournalReader <input.xmpj> <output.xmpr>");
+            System.exit(1);
+        }
+
+        try
+        {
+            int count = convert( new File(args[0]), new File(args[1]) );
+            System.out.println(count+" records converted");
+        }
+        catch (IOException ex)
+        {
+            System.err.println(ex.getMessage());
+            System.exit(1);
+        }
+    }
+}
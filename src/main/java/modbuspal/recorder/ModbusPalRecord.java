@@ -22,10 +22,12 @@ public class ModbusPalRecord
     
     /** indicates that a record is outgoing, issued by modbuspal toward an external device. */
     public static final int RECORD_OUT = 2;
+
+    private static final Pattern RECORD_PATTERN = Pattern.compile("^<(\\p{Alpha}+)\\p{Space}+timestamp=(\\p{Digit}+)\\p{Space}+slave=([^>]+)>([0-9a-fA-F]*)</(\\p{Alpha}+)>$");
     
     private int recordType = 0;
     private long recordTimestamp = 0;
-    private int recordSlave = 0;
+    private ModbusSlaveAddress recordSlave = null;
     private byte recordData[] = null;
     private int recordDataLength = 0;
 
@@ -35,20 +37,23 @@ public class ModbusPalRecord
      * The object will parse the String in order to extract the meaningful
      * data.
      * @param line entry from the record file, containing the data of ther record.
+     * @throws IllegalArgumentException if the line is not a valid record
      */
     public ModbusPalRecord(String line)
     {
         line = line.trim();
-        Pattern p = Pattern.compile("^<(\\p{Alpha}+)\\p{Space}+timestamp=(\\p{Digit}+)\\p{Space}+slave=(\\p{Digit}+)>([0-9a-fA-F]+)</(\\p{Alpha}+)>$");
-        Matcher m = p.matcher(line);
-        boolean b = m.matches();
+        Matcher m = RECORD_PATTERN.matcher(line);
+        if( m.matches()==false )
+        {
+            throw new IllegalArgumentException("Invalid record: "+line);
+        }
 
         // in or out
         String tag = m.group(1);
         String end = m.group(5);
         if( tag.compareTo(end)!=0 )
         {
-            throw new RuntimeException();
+            throw new IllegalArgumentException("Invalid record: "+line);
         }
         else if( tag.compareTo("in")==0 )
         {
@@ -65,13 +70,12 @@ public class ModbusPalRecord
 
         // slave
         String slave = m.group(3);
-        recordSlave = Integer.parseInt(slave);
+        recordSlave = ModbusSlaveAddress.parse(slave);
 
         // data
         String data = m.group(4);
-        recordData = new byte[256];
-        recordData = HexaTools.toByte(data,recordData);
-        recordDataLength = ( data.length()+1 ) / 2;
+        recordData = HexaTools.toByte(data);
+        recordDataLength = recordData.length;
     }
 
 
@@ -102,8 +106,7 @@ public class ModbusPalRecord
      */
     public ModbusSlaveAddress getSlaveID()
     {
-        throw new UnsupportedOperationException("not yet implemented");
-        //return recordSlave;
+        return recordSlave;
     }
 
     /**
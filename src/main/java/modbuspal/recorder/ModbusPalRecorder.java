@@ -6,24 +6,19 @@
 package modbuspal.recorder;
 
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.util.Date;
-import java.util.logging.Level;
-import java.util.logging.Logger;
 import modbuspal.slave.ModbusSlaveAddress;
-import modbuspal.toolkit.HexaTools;
 import modbuspal.toolkit.XFileChooser;
 
 /**
- * Records incoming and outgoing data
+ * Records incoming and outgoing data. The records are handed over to a
+ * ModbusPalJournal, which writes them into the file in a background thread;
+ * when no recording is in progress, the record methods return immediately.
  * @author nnovic
  */
 public class ModbusPalRecorder
-//implements Runnable
 {
-    private static ModbusPalRecorder uniqInst = new ModbusPalRecorder();
-    private Date start = null;
+    private static volatile ModbusPalJournal journal = null;
 
     /**
      * Adds a record into the file. The record is marked as being "incoming",
@@ -35,21 +30,29 @@ public class ModbusPalRecorder
      */
     public static void recordIncoming(ModbusSlaveAddress slaveID, byte[] buffer, int offset, int pduLength)
     {
-        uniqInst.record("in", slaveID, buffer, offset, pduLength);
+        ModbusPalJournal j = journal;
+        if( j != null )
+        {
+            j.record(ModbusPalRecord.RECORD_IN, slaveID, buffer, offset, pduLength);
+        }
     }
 
     
     /**
-     * Adds a record into the file. The record is marked as being "incoming",
-     * which means of type RECORD_IN.
-     * @param slaveID the slave number that is the target of the incoming request
-     * @param buffer buffer containing the incoming data (pdu request)
+     * Adds a record into the file. The record is marked as being "outgoing",
+     * which means of type RECORD_OUT.
+     * @param slaveID the slave number that replied to the request
+     * @param buffer buffer containing the outgoing data (pdu reply)
      * @param offset offset where the actua data starts in the buffer
-     * @param pduLength the length of the incoming pdu
+     * @param pduLength the length of the outgoing pdu
      */
     public static void recordOutgoing(ModbusSlaveAddress slaveID, byte[] buffer, int offset, int pduLength)
     {
-        uniqInst.record("out", slaveID, buffer, offset, pduLength);
+        ModbusPalJournal j = journal;
+        if( j != null )
+        {
+            j.record(ModbusPalRecord.RECORD_OUT, slaveID, buffer, offset, pduLength);
+        }
     }
 
     /**
@@ -61,91 +64,14 @@ public class ModbusPalRecorder
         return;
     }
 
-    //private PipedInputStream input;
-    //private PipedOutputStream output;
-    //private boolean running;
-    private FileWriter fileWriter=null;
-    
-    ModbusPalRecorder()
-    {
-        //output = new PipedOutputStream();
-        //Thread thread = new Thread(this);
-        //running=true;
-        //thread.start();
-    }
-
-
-    private synchronized void setOutput(FileWriter writer)
-    throws IOException
-    {
-        if( fileWriter!=null )
-        {
-            fileWriter.flush();
-            fileWriter.close();
-        }
-        fileWriter = writer;
-        start = null;
-    }
-
-    /*
-    @Override
-    public void run()
+    /**
+     * Checks if a recording is in progress.
+     * @return true if the records are written into a file
+     */
+    public static boolean isRecording()
     {
-
-        try
-        {
-            // create input reader that the recorder will use to get
-            // data that has to be written into the record file.
-            input = new PipedInputStream(output, 1024 * 1024);
-            InputStreamReader reader = new InputStreamReader(input);
-            BufferedReader buffer = new BufferedReader(reader);
-
-            System.out.println("Start recorder");
-            
-            while (running == true)
-            {
-                try 
-                {
-                    // read a line from the pipe
-                    String line = buffer.readLine();
-
-                    // if recording is enabled...
-                    if (fileWriter != null)
-                    {
-                        fileWriter.write(line+"\r\n");
-                    }
-                } 
-                catch (IOException ex)
-                {
-                    ex.printStackTrace();
-                    System.out.println("pipe broken, recreate pipe");
-                    input = new PipedInputStream(output, 1024 * 1024);
-                    reader = new InputStreamReader(input);
-                    buffer = new BufferedReader(reader);
-                }
-            }
-
-            try
-            {
-                buffer.close();
-                reader.close();
-                input.close();
-            } 
-            catch (IOException ex)
-            {
-                Logger.getLogger(ModbusPalRecorder.class.getName()).log(Level.SEVERE, null, ex);
-            }
-            finally
-            {
-                System.out.println("Stop recorder");
-            }
-        }
-        catch (IOException ex)
-        {
-            Logger.getLogger(ModbusPalRecorder.class.getName()).log(Level.SEVERE, null, ex);
-        }
+        return journal != null;
     }
-    */
 
     /**
      * Starts the recording of a session. This method will summon a FileChooser
@@ -161,56 +87,39 @@ public class ModbusPalRecorder
         File destFile = fc.getSelectedFile();
         if( destFile!= null )
         {
-            System.out.println("recording into "+destFile.getPath());
-            uniqInst.setOutput( new FileWriter(destFile) );
+            start(destFile);
         }
     }
 
     /**
-     * Stops the recording.
-     * @throws IOException 
+     * Starts the recording of a session into the specified file. If the
+     * extension of the file is "xmpj", the records are written in the binary
+     * format; otherwise they are written in the .xmpr text format. If a
+     * recording is already in progress, it is stopped first.
+     * @param destFile the file where the data will be written
+     * @throws IOException if the file cannot be created
      */
-    public static void stop()
+    public static synchronized void start(File destFile)
     throws IOException
     {
-        uniqInst.setOutput(null);
+        stop();
+        System.out.println("recording into "+destFile.getPath());
+        journal = new ModbusPalJournal(destFile);
     }
 
-    private synchronized void record(String tag, ModbusSlaveAddress slaveID, byte[] buffer, int offset, int pduLength)
+    /**
+     * Stops the recording. The records that are still waiting to be written
+     * are written into the file before it is closed.
+     * @throws IOException 
+     */
+    public static synchronized void stop()
+    throws IOException
     {
-        Date now = new Date();
-        if( start==null )
-        {
-            start = now;
-        }
-        long timestamp = now.getTime() - start.getTime();
-
-        String open = String.format("<%s timestamp=%d slave=%s>", tag, timestamp, slaveID.toString());
-        String hexa = HexaTools.toHexa(buffer, offset, pduLength);
-        String close = String.format("</%s>\r\n",tag);
-
-        // if recording is enabled...
-        if (fileWriter != null)
+        ModbusPalJournal j = journal;
+        if( j != null )
         {
-            try {
-                fileWriter.write(open + hexa + close);
-            } catch (IOException ex) {
-                Logger.getLogger(ModbusPalRecorder.class.getName()).log(Level.SEVERE, null, ex);
-            }
+            journal = null;
+            j.close();
         }
-
-        /*System.out.println(open+hexa+close);
-        try
-        {
-            output.write(open.getBytes());
-            output.write(hexa.getBytes());
-            output.write(close.getBytes());
-        } 
-        catch (IOException ex)
-        {
-            Logger.getLogger(ModbusPalRecorder.class.getName()).log(Level.SEVERE, null, ex);
-        }
-        */
     }
-
 }
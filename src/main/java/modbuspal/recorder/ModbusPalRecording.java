@@ -0,0 +1,191 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package modbuspal.recorder;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import modbuspal.slave.ModbusSlaveAddress;
+
+/**
+ * The incoming requests of a recorded session, loaded in memory before the
+ * replay starts, so that replaying them involves no parsing nor allocation.
+ * The PDUs are stored one after the other in a single byte array; the
+ * timestamp, slave and position of each request are stored in parallel
+ * arrays. Both the .xmpr text files and the .xmpj binary journals can be
+ * loaded.
+ * @author nnovic
+ */
+public class ModbusPalRecording
+{
+    private int count = 0;
+    private long timestamps[] = new long[1024];
+    private ModbusSlaveAddress slaves[] = new ModbusSlaveAddress[1024];
+    private int offsets[] = new int[1025];
+    private byte data[] = new byte[65536];
+
+    // share the instances of ModbusSlaveAddress between the requests:
+    private final HashMap<ModbusSlaveAddress,ModbusSlaveAddress> slaveIds = new HashMap<ModbusSlaveAddress,ModbusSlaveAddress>();
+
+    private ModbusPalRecording()
+    {
+    }
+
+    /**
+     * Loads the incoming requests of a recorded session.
+     * @param source a .xmpj binary journal, or a .xmpr text file
+     * @return the loaded requests
+     * @throws IOException if the file cannot be read or is not valid
+     */
+    public static ModbusPalRecording load(File source)
+    throws IOException
+    {
+        ModbusPalRecording recording = new ModbusPalRecording();
+        if( ModbusPalJournalReader.isJournal(source) == true )
+        {
+            recording.loadJournal(source);
+        }
+        else
+        {
+            recording.loadText(source);
+        }
+        return recording;
+    }
+
+    private void loadJournal(File source)
+    throws IOException
+    {
+        ModbusPalJournalReader reader = new ModbusPalJournalReader(source);
+        try
+        {
+            while( reader.next() == true )
+            {
+                if( reader.getType() == ModbusPalRecord.RECORD_IN )
+                {
+                    add(reader.getTimestamp(), reader.getSlaveID(), reader.getData(), reader.getDataLength());
+                }
+            }
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+
+    private void loadText(File source)
+    throws IOException
+    {
+        BufferedReader reader = new BufferedReader( new FileReader(source) );
+        try
+        {
+            int lineNumber = 0;
+            String line;
+            while( (line=reader.readLine()) != null )
+            {
+                lineNumber++;
+                if( line.trim().length() == 0 )
+                {
+                    continue;
+                }
+
+                ModbusPalRecord record;
+                try
+                {
+                    record = new ModbusPalRecord(line);
+                }
+                catch(IllegalArgumentException ex)
+                {
+                    throw new IOException(source.getPath()+", line "+lineNumber+": "+ex.getMessage());
+                }
+
+                if( record.getType() == ModbusPalRecord.RECORD_IN )
+                {
+                    // timestamps of the text format are in milliseconds:
+                    add(record.getTimestamp()*1000000L, record.getSlaveID(), record.getData(), record.getDataLength());
+                }
+            }
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+
+    private void add(long timestamp, ModbusSlaveAddress slave, byte[] pdu, int length)
+    {
+        if( count == timestamps.length )
+        {
+            timestamps = Arrays.copyOf(timestamps, 2*count);
+            slaves = Arrays.copyOf(slaves, 2*count);
+            offsets = Arrays.copyOf(offsets, 2*count+1);
+        }
+        int offset = offsets[count];
+        if( offset+length > data.length )
+        {
+            data = Arrays.copyOf(data, Math.max(2*data.length, offset+length));
+        }
+
+        ModbusSlaveAddress shared = slaveIds.get(slave);
+        if( shared == null )
+        {
+            slaveIds.put(slave, slave);
+            shared = slave;
+        }
+
+        timestamps[count] = timestamp;
+        slaves[count] = shared;
+        System.arraycopy(pdu, 0, data, offset, length);
+        offsets[count+1] = offset+length;
+        count++;
+    }
+
+    /**
+     * Returns the number of requests in the recording.
+     * @return the number of requests
+     */
+    public int getCount()
+    {
+        return count;
+    }
+
+    /**
+     * Returns the timestamp of a request, in nanoseconds since the
+     * beginning of the recording.
+     * @param i the number of the request
+     * @return the timestamp of the request
+     */
+    public long getTimestamp(int i)
+    {
+        return timestamps[i];
+    }
+
+    /**
+     * Returns the target of a request.
+     * @param i the number of the request
+     * @return the slave targeted by the request
+     */
+    public ModbusSlaveAddress getSlaveID(int i)
+    {
+        return slaves[i];
+    }
+
+    /**
+     * Copies the PDU of a request into a buffer.
+     * @param i the number of the request
+     * @param buffer the buffer where the PDU is copied
+     * @param offset the offset where the PDU starts in the buffer
+     * @return the length of the PDU
+     */
+    public int getData(int i, byte[] buffer, int offset)
+    {
+        int length = offsets[i+1] - offsets[i];
+        System.arraycopy(data, offsets[i], buffer, offset, length);
+        return length;
+    }
+}
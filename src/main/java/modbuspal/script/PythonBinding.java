@@ -26,6 +26,17 @@ extends Binding
         return 0;
     }
 
+    /**
+     * The registers of a python binding are computed by the script each
+     * time they are read, so they are never cached.
+     * @return null
+     */
+    @Override
+    public Object getEncodingKey()
+    {
+        return null;
+    }
+
     @Override
     public Binding newInstance()
     throws InstantiationException, IllegalAccessException
@@ -0,0 +1,191 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package modbuspal.script;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import modbuspal.toolkit.ThreadTools;
+import org.python.core.Py;
+import org.python.core.PyCode;
+import org.python.core.PyString;
+import org.python.core.PyStringMap;
+import org.python.core.PySystemState;
+import org.python.util.PythonInterpreter;
+
+/**
+ * The Jython resources shared by all the scripts of ModbusPal.
+ * <p>
+ * Initializing Jython takes seconds, and compiling a script takes a good
+ * fraction of a second, so both are done only once: the interpreters are
+ * kept in a pool, and all of them share the same PySystemState (the default
+ * one, which is also used by the threads that call the python bindings and
+ * generators). The pool is filled by a background thread as soon as the
+ * first script is loaded. The compiled code of each script file is cached,
+ * and compiled again only if the file is modified.
+ * <p>
+ * Each execution gets a fresh namespace, as if the script was run by a new
+ * interpreter; the objects created by a previous execution remain valid,
+ * because the functions and classes keep a reference on the namespace where
+ * they were defined.
+ * @author nnovic
+ */
+class PythonEnvironment
+{
+    /** name of the system property that defines the number of pre-warmed interpreters */
+    static final String POOL_SIZE_PROPERTY = "modbuspal.script.pool";
+
+    /**
+     * The compiled code of a script file.
+     */
+    private static final class CompiledScript
+    {
+        final long lastModified;
+        final long length;
+        final PyCode code;
+
+        CompiledScript(long m, long l, PyCode c)
+        {
+            lastModified = m;
+            length = l;
+            code = c;
+        }
+    }
+
+    private static final int poolSize = Math.max(1, Integer.getInteger(POOL_SIZE_PROPERTY, 2));
+    private static final BlockingQueue<PythonInterpreter> pool = new ArrayBlockingQueue<PythonInterpreter>(poolSize);
+    private static final ConcurrentHashMap<File,CompiledScript> codeCache = new ConcurrentHashMap<File,CompiledScript>();
+    private static PySystemState systemState = null;
+    private static boolean warming = false;
+
+    private PythonEnvironment()
+    {
+    }
+
+    /**
+     * Starts filling the pool of interpreters in the background, if it is
+     * not done yet.
+     */
+    static synchronized void prewarm()
+    {
+        if( warming == true )
+        {
+            return;
+        }
+        warming = true;
+
+        Thread t = ThreadTools.newThreadFactory("script pool").newThread( new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    while( pool.remainingCapacity() > 0 )
+                    {
+                        PythonInterpreter pi = newInterpreter();
+                        // the first compilation loads the parser and the
+                        // compiler of Jython:
+                        pi.compile( new StringReader("pass"), "<prewarm>" );
+                        if( pool.offer(pi) == false )
+                        {
+                            break;
+                        }
+                    }
+                }
+                catch(Throwable ex)
+                {
+                    Logger.getLogger(PythonEnvironment.class.getName()).log(Level.SEVERE, null, ex);
+                }
+            }
+        });
+        t.setPriority(Thread.MIN_PRIORITY);
+        t.start();
+    }
+
+    private static synchronized PythonInterpreter newInterpreter()
+    {
+        if( systemState == null )
+        {
+            PySystemState.initialize();
+            systemState = Py.getSystemState();
+        }
+        PythonInterpreter pi = new PythonInterpreter(null, systemState);
+        resetNamespace(pi);
+        return pi;
+    }
+
+    private static void resetNamespace(PythonInterpreter pi)
+    {
+        PyStringMap namespace = new PyStringMap();
+        namespace.__setitem__("__name__", new PyString("__main__"));
+        pi.setLocals(namespace);
+    }
+
+    /**
+     * Takes an interpreter from the pool, or creates one if the pool is
+     * empty. The interpreter must be given back with release().
+     * @return an interpreter with an empty namespace
+     */
+    static PythonInterpreter acquire()
+    {
+        PythonInterpreter pi = pool.poll();
+        if( pi == null )
+        {
+            pi = newInterpreter();
+        }
+        return pi;
+    }
+
+    /**
+     * Gives an interpreter back to the pool. Its namespace is cleared.
+     * @param pi the interpreter obtained from acquire()
+     */
+    static void release(PythonInterpreter pi)
+    {
+        resetNamespace(pi);
+        pool.offer(pi);
+    }
+
+    /**
+     * Returns the compiled code of a script file. The file is compiled again
+     * only if it has been modified since the last call.
+     * @param pi the interpreter used to compile the script
+     * @param file the script file
+     * @return the compiled code of the script
+     * @throws IOException if the file cannot be read
+     */
+    static PyCode getCode(PythonInterpreter pi, File file)
+    throws IOException
+    {
+        File key = file.getAbsoluteFile();
+        long lastModified = key.lastModified();
+        long length = key.length();
+
+        CompiledScript cs = codeCache.get(key);
+        if( (cs!=null) && (cs.lastModified==lastModified) && (cs.length==length) )
+        {
+            return cs.code;
+        }
+
+        FileReader reader = new FileReader(key);
+        try
+        {
+            PyCode code = pi.compile(reader, key.getPath());
+            codeCache.put(key, new CompiledScript(lastModified, length, code));
+            return code;
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+}
@@ -20,6 +20,9 @@ import org.w3c.dom.NodeList;
  * - getValue() is no more abstract (the default implementation always returns 0)
  * - setIcon() becomes public because Python doesn't handle protected methods, and
  *   adds the ability to search for image files into the directory of the script.
+ * Each call to getValue() crosses from Java into Python; a generator that only
+ * depends on the time can call setLookAhead() in init() and override getValues(),
+ * so that the automation computes several steps in a single call.
  * @author nnovic
  */
 public class PythonGenerator
@@ -5,9 +5,9 @@
 
 package modbuspal.script;
 
+import java.awt.GraphicsEnvironment;
 import java.io.IOException;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.OutputStream;
 import java.util.logging.Level;
@@ -17,6 +17,7 @@ import modbuspal.main.ModbusPalXML;
 import modbuspal.toolkit.FileTools;
 import modbuspal.toolkit.GUITools;
 import modbuspal.toolkit.XMLTools;
+import org.python.core.PyCode;
 import org.python.util.PythonInterpreter;
 import org.w3c.dom.NamedNodeMap;
 import org.w3c.dom.Node;
@@ -143,8 +144,8 @@ implements ModbusPalXML
         {
             System.out.println("No file found for script "+scriptFile.getPath());
 
-            // IF NO FILE FOUND, PROMPT USER:
-            if(promptUser==true)
+            // IF NO FILE FOUND, PROMPT USER (unless there is no display):
+            if( (promptUser==true) && (GraphicsEnvironment.isHeadless()==false) )
             {
                 // create error message box with 2 buttons:
                 scriptFile = GUITools.promptUserFileNotFound(null, scriptFile);
@@ -229,6 +230,7 @@ implements ModbusPalXML
         modbusPalProject = mpp;
         scriptFile = file;
         scriptType = type;
+        PythonEnvironment.prewarm();
     }
 
 
@@ -314,34 +316,29 @@ implements ModbusPalXML
     }
 
     /**
-     * Executes this script.
+     * Executes this script. The script is run by an interpreter of the pool,
+     * and is compiled only the first time, or when the file is modified.
      */
     public void execute()
     {
-        FileInputStream in = null;
-
+        PythonInterpreter interp = PythonEnvironment.acquire();
         try
         {
-            in = new FileInputStream(scriptFile);
-            PythonInterpreter interp = new PythonInterpreter();
+            PyCode code = PythonEnvironment.getCode(interp, scriptFile);
             initEnvironment(interp);
-            interp.execfile(in);
+            interp.exec(code);
         }
         catch (FileNotFoundException ex)
         {
             Logger.getLogger(ScriptRunner.class.getName()).log(Level.SEVERE, null, ex);
         }
-
-        if( in != null )
+        catch (IOException ex)
         {
-            try
-            {
-                in.close();
-            }
-            catch (IOException ex)
-            {
-                Logger.getLogger(ScriptRunner.class.getName()).log(Level.SEVERE, null, ex);
-            }
+            Logger.getLogger(ScriptRunner.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        finally
+        {
+            PythonEnvironment.release(interp);
         }
     }
 
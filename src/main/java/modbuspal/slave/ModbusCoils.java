@@ -5,8 +5,10 @@
 
 package modbuspal.slave;
 
+import modbuspal.automation.AutomationSample;
 import modbuspal.binding.Binding;
 import modbuspal.link.ModbusSlaveProcessor;
+import modbuspal.main.ModbusCoilsMap;
 import static modbuspal.main.ModbusConst.FC_READ_COILS;
 import static modbuspal.main.ModbusConst.FC_READ_DISCRETE_INPUTS;
 import static modbuspal.main.ModbusConst.FC_WRITE_MULTIPLE_COILS;
@@ -23,12 +25,20 @@ import modbuspal.toolkit.ModbusTools;
 public class ModbusCoils
 extends ModbusRegisters
 {
+    private final ModbusCoilsMap coils;
+
     /**
      * Creates a new instance of ModbusCoils
      */
     public ModbusCoils()
     {
-        super();
+        this( new ModbusCoilsMap() );
+    }
+
+    private ModbusCoils(ModbusCoilsMap store)
+    {
+        super(store);
+        coils = store;
         TXT_REGISTER = "coil";
         TXT_REGISTERS = "coils";
     }
@@ -267,9 +277,9 @@ extends ModbusRegisters
     }
 
     @Override
-    protected int getValue(Binding binding)
+    protected int getValue(Binding binding, AutomationSample sample)
     {
-        if( binding.getCoil()==true )
+        if( binding.getCoil(sample)==true )
         {
             return 1;
         }
@@ -279,11 +289,28 @@ extends ModbusRegisters
     @Override
     public byte getValues(int startingAddress, int quantity, byte[] buffer, int offset)
     {
+        coils.getBits(startingAddress, quantity, buffer, offset);
 
-        for(int i=0; i<quantity; i++)
+        // the bound coils take the value of their automation, one sample
+        // per automation:
+        if( isBound(startingAddress, quantity) == true )
         {
-            Integer reg = getValue(startingAddress+i);
-            ModbusTools.setBit(buffer, (offset*8)+i, reg);
+            SampleSet samples = getSampleSet();
+            try
+            {
+                for(int i=0; i<quantity; i++)
+                {
+                    if( isBound(startingAddress+i) == true )
+                    {
+                        Binding binding = getBinding(startingAddress+i);
+                        ModbusTools.setBit(buffer, (offset*8)+i, getValue(binding, samples.get(binding)));
+                    }
+                }
+            }
+            finally
+            {
+                samples.clear();
+            }
         }
         return XC_SUCCESSFUL;
     }
@@ -301,10 +328,18 @@ extends ModbusRegisters
     @Override
     public byte setValues(int startingAddress, int quantity, byte[] buffer, int offset)
     {
+        if( exist(startingAddress, quantity) == true )
+        {
+            coils.setBits(startingAddress, quantity, buffer, offset);
+            notifyTableChanged();
+            return XC_SUCCESSFUL;
+        }
+
+        // stop at the first coil that doesn't exist:
         byte retval = XC_SUCCESSFUL;
         for(int i=0; i<quantity; i++)
         {
-            Integer reg = ModbusTools.getBit(buffer, (offset*8) + i);
+            int reg = ModbusTools.getBit(buffer, (offset*8) + i);
             retval = setValueSilent(startingAddress+i,reg);
             if( retval != XC_SUCCESSFUL )
             {
@@ -317,7 +352,7 @@ extends ModbusRegisters
 
 
     @Override
-    protected Integer checkValueBoundaries(Integer value)
+    protected int checkValueBoundaries(int value)
     {
         if( value<0 )
         {
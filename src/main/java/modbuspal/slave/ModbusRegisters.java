@@ -8,13 +8,18 @@ package modbuspal.slave;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
 import javax.swing.JPanel;
 import javax.swing.event.TableModelEvent;
 import javax.swing.event.TableModelListener;
 import javax.swing.table.TableModel;
+import modbuspal.automation.Automation;
+import modbuspal.automation.AutomationSample;
 import modbuspal.binding.Binding;
 import modbuspal.link.ModbusSlaveProcessor;
 import modbuspal.main.ModbusConst;
@@ -29,6 +34,7 @@ import modbuspal.main.ModbusValuesMap;
 import modbuspal.main.ModbusPalXML;
 import modbuspal.master.ModbusMasterRequest;
 import modbuspal.toolkit.ModbusTools;
+import modbuspal.toolkit.TableUpdateBus;
 import org.w3c.dom.NamedNodeMap;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
@@ -38,7 +44,7 @@ import org.w3c.dom.NodeList;
  * @author nnovic
  */
 public class ModbusRegisters
-implements ModbusPduProcessor, TableModel, ModbusPalXML, ModbusConst
+implements ModbusPduProcessor, TableModel, ModbusPalXML, ModbusConst, TableUpdateBus.Source
 {
 
     class RegisterCopy
@@ -77,12 +83,139 @@ implements ModbusPduProcessor, TableModel, ModbusPalXML, ModbusConst
     /** defines the plural form of the TXT_REGISTER word. */
     protected String TXT_REGISTERS = "registers";
 
-    private ModbusValuesMap values = new ModbusValuesMap();
-    private HashMap<Integer,String> names = new HashMap<Integer,String>(65536);
-    private ArrayList<TableModelListener> tableModelListeners = new ArrayList<TableModelListener>();
-    private HashMap<Integer,Binding> bindings = new HashMap<Integer,Binding>(65536);
+    private final ModbusValuesMap values;
+    private HashMap<Integer,String> names = new HashMap<Integer,String>();
+    private final CopyOnWriteArrayList<TableModelListener> tableModelListeners = new CopyOnWriteArrayList<TableModelListener>();
+    /** indexes of the values whose rows must be refreshed at the next frame */
+    private final BitSet dirtyIndexes = new BitSet();
+    /** true if the whole table must be refreshed at the next frame */
+    private boolean tableDirty = false;
+    private HashMap<Integer,Binding> bindings = new HashMap<Integer,Binding>();
+    /** indexes of the registers that are in the bindings map */
+    private final BitSet boundIndexes = new BitSet();
+    /** bound indexes grouped by automation; null when the bindings have changed */
+    private volatile BoundAutomation boundAutomations[] = null;
+    /** automation steps already reported to the table listeners */
+    private final BindingCursor tableCursor = new BindingCursor();
     private int addressOffset = 1;
 
+    /**
+     * The indexes of the registers bound to the same automation.
+     */
+    private static final class BoundAutomation
+    {
+        final Automation automation;
+        final BitSet indexes = new BitSet();
+
+        BoundAutomation(Automation a)
+        {
+            automation = a;
+        }
+    }
+
+    /**
+     * The samples of the automations read during one request. A request
+     * only involves a few automations, so they are found by a linear scan;
+     * the arrays are reused by the next requests of the same thread.
+     */
+    static final class SampleSet
+    {
+        private Automation automations[] = new Automation[4];
+        private AutomationSample samples[] = new AutomationSample[4];
+        private int count = 0;
+
+        /**
+         * Returns the sample of the automation of a binding, as read at the
+         * first use of this automation since the last call to clear().
+         * @param binding the binding whose automation is sampled
+         * @return the sample of the automation of the binding
+         */
+        AutomationSample get(Binding binding)
+        {
+            Automation automation = binding.getAutomation();
+            for( int i=0; i<count; i++ )
+            {
+                if( automations[i] == automation )
+                {
+                    return samples[i];
+                }
+            }
+
+            if( count == automations.length )
+            {
+                automations = Arrays.copyOf(automations, 2*count);
+                samples = Arrays.copyOf(samples, 2*count);
+            }
+            AutomationSample sample = automation.getCurrentSample();
+            automations[count] = automation;
+            samples[count] = sample;
+            count++;
+            return sample;
+        }
+
+        /**
+         * Forgets the samples, so that the automations can be garbage
+         * collected.
+         */
+        void clear()
+        {
+            Arrays.fill(automations, 0, count, null);
+            Arrays.fill(samples, 0, count, null);
+            count = 0;
+        }
+    }
+
+    private static final ThreadLocal<SampleSet> sampleSets = new ThreadLocal<SampleSet>()
+    {
+        @Override
+        protected SampleSet initialValue()
+        {
+            return new SampleSet();
+        }
+    };
+
+    /**
+     * Returns the set of samples of the calling thread. It must be cleared
+     * at the end of the request.
+     * @return the set of samples of the calling thread
+     */
+    static SampleSet getSampleSet()
+    {
+        return sampleSets.get();
+    }
+
+    /**
+     * Remembers the samples of the automations that have already been
+     * reported by collectChangedBindings(). The table listeners are the only
+     * consumer of the changes, through tableCursor. Only the automations
+     * that are still bound are remembered.
+     */
+    public static class BindingCursor
+    {
+        private HashMap<Automation,AutomationSample> seen = new HashMap<Automation,AutomationSample>();
+        /** the list of bound automations when seen was last pruned */
+        private BoundAutomation bound[] = null;
+    }
+
+    /**
+     * Creates a new instance of ModbusRegisters
+     */
+    public ModbusRegisters()
+    {
+        this( new ModbusValuesMap() );
+    }
+
+    /**
+     * Creates a new instance of ModbusRegisters, whose values are kept in
+     * the specified map. Subclasses use it to provide a more suitable
+     * storage, like the one bit per value of ModbusCoils.
+     * @param store the map where the values are stored
+     */
+    protected ModbusRegisters(ModbusValuesMap store)
+    {
+        values = store;
+    }
+
     //==========================================================================
     //
     // PDU PROCESSOR
@@ -200,11 +333,7 @@ implements ModbusPduProcessor, TableModel, ModbusPalXML, ModbusConst
 
         // then perform read operation:
         buffer[offset+1] = (byte) (2*quantityToRead);
-        for(int i=0; i<quantityToRead; i++)
-        {
-            Integer reg = getValue(readStartingAddress+i);
-            ModbusTools.setUint16(buffer, offset+2+(2*i), reg);
-        }
+        getValues(readStartingAddress, quantityToRead, buffer, offset+2);
 
         return 2 + (2*quantityToRead);
     }
@@ -396,7 +525,7 @@ implements ModbusPduProcessor, TableModel, ModbusPalXML, ModbusConst
             return ModbusSlaveProcessor.makeExceptionResponse(functionCode, XC_ILLEGAL_DATA_ADDRESS, buffer, offset);
         }
 
-        Integer reg = ModbusTools.getUint16(buffer, offset + 3);
+        int reg = ModbusTools.getUint16(buffer, offset + 3);
         byte rc = setValue(address,reg);
         if( rc != XC_SUCCESSFUL )
         {
@@ -469,11 +598,7 @@ implements ModbusPduProcessor, TableModel, ModbusPalXML, ModbusConst
         buffer[offset+1] = (byte) (2*quantity);
 
         // write registers
-        for(int i=0; i<quantity; i++)
-        {
-            Integer reg = getValue(startingAddress+i);
-            ModbusTools.setUint16(buffer, offset+2+(2*i), reg);
-        }
+        getValues(startingAddress, quantity, buffer, offset+2);
 
         return 2 + (2*quantity);
     }
@@ -589,10 +714,9 @@ implements ModbusPduProcessor, TableModel, ModbusPalXML, ModbusConst
      */
     public int getValue(int index)
     {
-        Binding binding = bindings.get(index);
-        if( binding != null )
+        if( isBound(index) == true )
         {
-            return getValue(binding);
+            return getValue( bindings.get(index) );
         }
         else
         {
@@ -607,7 +731,19 @@ implements ModbusPduProcessor, TableModel, ModbusPalXML, ModbusConst
      */
     protected int getValue(Binding binding)
     {
-        return binding.getRegister();
+        return getValue( binding, binding.getAutomation().getCurrentSample() );
+    }
+
+    /**
+     * Returns the value provided by the binding for a sample of its
+     * automation.
+     * @param binding the binding that provides the value
+     * @param sample the sample of the automation of the binding
+     * @return the value given by the binding.
+     */
+    protected int getValue(Binding binding, AutomationSample sample)
+    {
+        return binding.getRegister(sample);
     }
 
     /**
@@ -620,10 +756,38 @@ implements ModbusPduProcessor, TableModel, ModbusPalXML, ModbusConst
      */
     public byte getValues(int startingIndex, int quantity, byte[] buffer, int offset)
     {
-        for(int i=0; i<quantity; i++)
+        if( isBound(startingIndex, quantity) == false )
+        {
+            values.getWords(startingIndex, quantity, buffer, offset);
+            return XC_SUCCESSFUL;
+        }
+
+        // read one sample per automation, so that the words of a value
+        // are consistent even if the automation steps during the request.
+        // Several bindings can share an automation, even if they are not
+        // contiguous:
+        SampleSet samples = getSampleSet();
+        try
+        {
+            for(int i=0; i<quantity; i++)
+            {
+                int index = startingIndex+i;
+                int reg;
+                if( isBound(index) == true )
+                {
+                    Binding binding = getBinding(index);
+                    reg = getValue(binding, samples.get(binding));
+                }
+                else
+                {
+                    reg = values.getByIndex(index);
+                }
+                ModbusTools.setUint16(buffer, offset+(2*i), reg);
+            }
+        }
+        finally
         {
-            Integer reg = getValue(startingIndex+i);
-            ModbusTools.setUint16(buffer, offset+(2*i), reg);
+            samples.clear();
         }
         return XC_SUCCESSFUL;
     }
@@ -644,6 +808,8 @@ implements ModbusPduProcessor, TableModel, ModbusPalXML, ModbusConst
         names.clear();
         detachAllBindings();
         bindings.clear();
+        boundIndexes.clear();
+        bindingsChanged();
         notifyTableChanged();
     }
 
@@ -728,7 +894,7 @@ implements ModbusPduProcessor, TableModel, ModbusPalXML, ModbusConst
         byte retval = setValueSilent(index,val);
         if( retval==XC_SUCCESSFUL )
         {
-            notifyTableChanged(rowIndexOf(index), VALUE_COLUMN_INDEX);
+            notifyValueChanged(index);
         }
         return retval;
     }
@@ -743,10 +909,18 @@ implements ModbusPduProcessor, TableModel, ModbusPalXML, ModbusConst
      */
     public byte setValues(int startingAddress, int quantity, byte[] buffer, int offset)
     {
+        if( values.indexesExist(startingAddress, quantity) == true )
+        {
+            values.setWords(startingAddress, quantity, buffer, offset);
+            notifyTableChanged();
+            return XC_SUCCESSFUL;
+        }
+
+        // stop at the first register that doesn't exist:
         byte retval = XC_SUCCESSFUL;
         for(int i=0; i<quantity; i++)
         {
-            Integer reg = ModbusTools.getUint16(buffer, offset + 2* i);
+            int reg = ModbusTools.getUint16(buffer, offset + 2* i);
             retval = setValueSilent(startingAddress+i,reg);
             if( retval != XC_SUCCESSFUL )
             {
@@ -793,9 +967,11 @@ implements ModbusPduProcessor, TableModel, ModbusPalXML, ModbusConst
             }
             binding.attach(this,index);
             bindings.put(index, binding );
+            boundIndexes.set(index);
+            bindingsChanged();
         }
 
-        notifyTableChanged( values.getOrderOf(index) );
+        notifyValueChanged(index);
     }
 
 
@@ -828,22 +1004,19 @@ implements ModbusPduProcessor, TableModel, ModbusPalXML, ModbusConst
         assert( startingIndex >= 0 );
         assert( quantity >= 0 );
 
-        for( int i=0; i<quantity; i++ )
+        if( values.indexesExist(startingIndex, quantity) == true )
         {
-            int address = startingIndex + i;
-            if( exist(address) == false )
-            {
-                if( createIfNotExist==true )
-                {
-                    create(address, 1);
-                }
-                else
-                {
-                    return false;
-                }
-            }
+            return true;
         }
-        return true;
+
+        if( createIfNotExist==true )
+        {
+            // the registers that already exist are left unchanged, and a
+            // single event is sent for the whole range:
+            create(startingIndex, quantity);
+            return true;
+        }
+        return false;
     }
 
 
@@ -879,6 +1052,8 @@ implements ModbusPduProcessor, TableModel, ModbusPalXML, ModbusConst
         {
             binding.detach();
             bindings.remove(index);
+            boundIndexes.clear(index);
+            bindingsChanged();
         }
 
         // delete register
@@ -948,8 +1123,9 @@ implements ModbusPduProcessor, TableModel, ModbusPalXML, ModbusConst
     public void bind(int index, Binding binding)
     {
         bindings.put(index, binding);
-        int row = values.getOrderOf(index);
-        notifyTableChanged(row);
+        boundIndexes.set(index);
+        bindingsChanged();
+        notifyValueChanged(index);
         binding.attach(this,index);
     }
 
@@ -963,8 +1139,10 @@ implements ModbusPduProcessor, TableModel, ModbusPalXML, ModbusConst
         Binding removed = bindings.remove(index);
         if( removed!=null )
         {
+            boundIndexes.clear(index);
+            bindingsChanged();
             removed.detach();
-            notifyTableChanged( values.getOrderOf(index) );
+            notifyValueChanged(index);
         }
     }
 
@@ -979,6 +1157,94 @@ implements ModbusPduProcessor, TableModel, ModbusPalXML, ModbusConst
         return (bindings.size()>0);
     }
 
+    /**
+     * Returns the binding of the register identified by its index.
+     * @param index the index of the register
+     * @return the binding of the register, or null if it is not bound
+     */
+    protected Binding getBinding(int index)
+    {
+        return bindings.get(index);
+    }
+
+    /**
+     * Finds the bound registers whose automation has stepped since the
+     * previous call with the same cursor. The automations do not notify the
+     * registers when they step; the table pulls the changes when it is
+     * refreshed, so the cost of a step does not depend on the number of
+     * bound registers.
+     * @param cursor the cursor that remembers the changes already reported
+     * @param changed the indexes of the changed registers are added to
+     * this set
+     * @return true if at least one bound register has changed
+     */
+    public boolean collectChangedBindings(BindingCursor cursor, BitSet changed)
+    {
+        BoundAutomation list[] = getBoundAutomations();
+        if( cursor.bound != list )
+        {
+            // the bindings have changed: forget the automations that are
+            // no longer bound, so that they can be garbage collected.
+            HashMap<Automation,AutomationSample> seen = new HashMap<Automation,AutomationSample>();
+            for( int i=0; i<list.length; i++ )
+            {
+                Automation automation = list[i].automation;
+                AutomationSample sample = cursor.seen.get(automation);
+                if( sample != null )
+                {
+                    seen.put(automation, sample);
+                }
+            }
+            cursor.seen = seen;
+            cursor.bound = list;
+        }
+
+        boolean found = false;
+        for( int i=0; i<list.length; i++ )
+        {
+            Automation automation = list[i].automation;
+            AutomationSample sample = automation.getCurrentSample();
+            if( cursor.seen.put(automation, sample) != sample )
+            {
+                changed.or( list[i].indexes );
+                found = true;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Called when a binding is added or removed.
+     */
+    private void bindingsChanged()
+    {
+        boundAutomations = null;
+        updateTableUpdateRegistration();
+    }
+
+    private BoundAutomation[] getBoundAutomations()
+    {
+        BoundAutomation list[] = boundAutomations;
+        if( list == null )
+        {
+            HashMap<Automation,BoundAutomation> map = new HashMap<Automation,BoundAutomation>();
+            for( int index=boundIndexes.nextSetBit(0); index>=0; index=boundIndexes.nextSetBit(index+1) )
+            {
+                Automation automation = bindings.get(index).getAutomation();
+                BoundAutomation ba = map.get(automation);
+                if( ba == null )
+                {
+                    ba = new BoundAutomation(automation);
+                    map.put(automation, ba);
+                }
+                ba.indexes.set(index);
+            }
+            list = map.values().toArray( new BoundAutomation[map.size()] );
+            boundAutomations = list;
+        }
+        return list;
+    }
+
     /**
      * Checks if the value, identified by its index, has a binding or not.
      * @param index index of the register to check
@@ -986,8 +1252,19 @@ implements ModbusPduProcessor, TableModel, ModbusPalXML, ModbusConst
      */
     public boolean isBound(int index)
     {
-        Binding binding = bindings.get(index);
-        return (binding!=null);
+        return (index>=0) && (boundIndexes.get(index)==true);
+    }
+
+    /**
+     * Checks if any value of the range has a binding.
+     * @param startingIndex index of the first value of the range
+     * @param quantity number of values in the range
+     * @return true if at least one value of the range is bound to an automation.
+     */
+    public boolean isBound(int startingIndex, int quantity)
+    {
+        int next = boundIndexes.nextSetBit( Math.max(0,startingIndex) );
+        return (next>=0) && (next<startingIndex+quantity);
     }
 
     /**
@@ -1006,6 +1283,8 @@ implements ModbusPduProcessor, TableModel, ModbusPalXML, ModbusConst
             if( b.getClassName().compareTo(classname)==0 )
             {
                 bindings.remove(address);
+                boundIndexes.clear(address);
+                bindingsChanged();
             }
         }
         notifyTableChanged();
@@ -1109,9 +1388,9 @@ implements ModbusPduProcessor, TableModel, ModbusPalXML, ModbusConst
      * Checks if the specified value is within the allowed boundaries. For a 
      * MODBUS register, the allowed range is [0-65535]. For a coil, it is [0-1].
      * @param value the value to check
-     * @return true if the value is within boundaries.
+     * @return the value, brought back within boundaries.
      */
-    protected Integer checkValueBoundaries(Integer value)
+    protected int checkValueBoundaries(int value)
     {
         if( value<0 )
         {
@@ -1136,9 +1415,9 @@ implements ModbusPduProcessor, TableModel, ModbusPalXML, ModbusConst
             {
                 if( aValue instanceof String )
                 {
-                    Integer val = Integer.parseInt((String)aValue);
+                    int val = Integer.parseInt((String)aValue);
                     values.putByIndex(index, checkValueBoundaries(val));
-                    notifyTableChanged(rowIndex,columnIndex);
+                    fireTableChanged( new TableModelEvent(this, rowIndex, rowIndex, columnIndex) );
                 }
                 break;
             }
@@ -1149,7 +1428,7 @@ implements ModbusPduProcessor, TableModel, ModbusPalXML, ModbusConst
                 {
                     String val = (String)aValue;
                     names.put(index, val);
-                    notifyTableChanged(rowIndex,columnIndex);
+                    fireTableChanged( new TableModelEvent(this, rowIndex, rowIndex, columnIndex) );
                 }
                 break;
             }
@@ -1160,12 +1439,33 @@ implements ModbusPduProcessor, TableModel, ModbusPalXML, ModbusConst
     public void addTableModelListener(TableModelListener l)
     {
         tableModelListeners.add(l);
+        updateTableUpdateRegistration();
     }
 
     @Override
     public void removeTableModelListener(TableModelListener l)
     {
-        tableModelListeners.remove(l);
+        if( tableModelListeners.remove(l)==true )
+        {
+            updateTableUpdateRegistration();
+        }
+    }
+
+    /**
+     * The bound registers are polled at each frame of the TableUpdateBus,
+     * but only while the table is displayed and at least one register is
+     * bound; otherwise, the changes are posted when they happen.
+     */
+    private synchronized void updateTableUpdateRegistration()
+    {
+        if( (tableModelListeners.isEmpty()==false) && (boundIndexes.isEmpty()==false) )
+        {
+            TableUpdateBus.register(this);
+        }
+        else
+        {
+            TableUpdateBus.unregister(this);
+        }
     }
 
     //==========================================================================
@@ -1374,42 +1674,100 @@ implements ModbusPduProcessor, TableModel, ModbusPalXML, ModbusConst
 
 
     /**
-     * Triggers a "tableChanged" event for the registered TableModelListeners.
+     * Requests a "tableChanged" event for the registered TableModelListeners.
+     * The event is not fired immediately: it is fired on the Event Dispatch
+     * Thread at the next frame of the TableUpdateBus, so that this method can
+     * be called from any thread without slowing it down.
      */
     public void notifyTableChanged()
     {
-        TableModelEvent event = new TableModelEvent(this);
-        for(TableModelListener l:tableModelListeners)
+        if( tableModelListeners.isEmpty() == true )
         {
-            l.tableChanged(event);
+            return;
         }
+        synchronized(dirtyIndexes)
+        {
+            tableDirty = true;
+            dirtyIndexes.clear();
+        }
+        TableUpdateBus.post(this);
     }
 
     /**
-     * Triggers a "tableChanged" event for the registered TableModelListeners.
+     * Requests a "tableChanged" event for the registered TableModelListeners.
      * The event specifically addresses the row where the modified value is
-     * displayed.
+     * displayed. Like notifyTableChanged(), the event is fired at the next
+     * frame of the TableUpdateBus.
      * @param valueIndex index of the modified value (register/coil)
      */
     public void notifyRegisterChanged(int valueIndex)
     {
-        int index = rowIndexOf(valueIndex);
-        notifyTableChanged(index);
+        notifyValueChanged(valueIndex);
     }
 
-    private void notifyTableChanged(int rowIndex)
+    private void notifyValueChanged(int index)
     {
-        TableModelEvent event = new TableModelEvent(this,rowIndex);
-        for(TableModelListener l:tableModelListeners)
+        if( (tableModelListeners.isEmpty()==true) || (index<0) )
         {
-            l.tableChanged(event);
+            return;
+        }
+        synchronized(dirtyIndexes)
+        {
+            if( tableDirty == false )
+            {
+                dirtyIndexes.set(index);
+            }
         }
+        TableUpdateBus.post(this);
     }
 
+    /**
+     * Fires the events for the changes recorded since the last frame,
+     * including the bound registers whose automation has stepped. All
+     * the modified rows are covered by a single event: the rows are sorted
+     * by address, so they are all between the rows of the first and the
+     * last modified values.
+     */
+    @Override
+    public void flushUpdates()
+    {
+        boolean all;
+        int first = -1;
+        int last = -1;
+        synchronized(dirtyIndexes)
+        {
+            collectChangedBindings(tableCursor, dirtyIndexes);
+            all = tableDirty;
+            if( dirtyIndexes.isEmpty() == false )
+            {
+                first = dirtyIndexes.nextSetBit(0);
+                last = dirtyIndexes.length()-1;
+            }
+            tableDirty = false;
+            dirtyIndexes.clear();
+        }
+
+        if( (all==false) && (first>=0) )
+        {
+            // the values may have been removed in the meantime:
+            if( (values.indexExists(first)==false) || (values.indexExists(last)==false) )
+            {
+                all = true;
+            }
+            else
+            {
+                fireTableChanged( new TableModelEvent(this, rowIndexOf(first), rowIndexOf(last)) );
+            }
+        }
+
+        if( all == true )
+        {
+            fireTableChanged( new TableModelEvent(this) );
+        }
+    }
 
-    private void notifyTableChanged(int rowIndex, int columnIndex)
+    private void fireTableChanged(TableModelEvent event)
     {
-        TableModelEvent event = new TableModelEvent(this, rowIndex, rowIndex, columnIndex);
         for(TableModelListener l:tableModelListeners)
         {
             l.tableChanged(event);
@@ -5,6 +5,7 @@
 package modbuspal.slave;
 
 import java.net.InetAddress;
+import java.net.UnknownHostException;
 import modbuspal.main.ModbusConst;
 
 /**
@@ -14,9 +15,46 @@ import modbuspal.main.ModbusConst;
 public class ModbusSlaveAddress
 {
 
+    /**
+     * Creates a slave address from its representation, as returned by
+     * toString(): "rtu", "ip" or "ip(rtu)".
+     * @param slaveAddress the string to parse
+     * @return the slave address
+     * @throws IllegalArgumentException if the string is not a valid address
+     */
     public static ModbusSlaveAddress parse(String slaveAddress) 
     {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+        String s = slaveAddress.trim();
+        try
+        {
+            int open = s.indexOf('(');
+            if( open > 0 )
+            {
+                if( s.endsWith(")")==false )
+                {
+                    throw new IllegalArgumentException("Invalid slave address: "+slaveAddress);
+                }
+                InetAddress ip = InetAddress.getByName( s.substring(0,open) );
+                int n = Integer.parseInt( s.substring(open+1, s.length()-1) );
+                return new ModbusSlaveAddress(ip, n);
+            }
+            else if( (s.indexOf('.')>=0) || (s.indexOf(':')>=0) )
+            {
+                return new ModbusSlaveAddress( InetAddress.getByName(s) );
+            }
+            else
+            {
+                return new ModbusSlaveAddress( Integer.parseInt(s) );
+            }
+        }
+        catch(UnknownHostException ex)
+        {
+            throw new IllegalArgumentException("Invalid slave address: "+slaveAddress, ex);
+        }
+        catch(NumberFormatException ex)
+        {
+            throw new IllegalArgumentException("Invalid slave address: "+slaveAddress, ex);
+        }
     }
     
     
@@ -110,16 +148,46 @@ public class ModbusSlaveAddress
     @Override
     public int hashCode() 
     {
-        return toString().hashCode();
+        if( ipAddress!=null )
+        {
+            return 31 * ipAddress.hashCode() + rtuAddress;
+        }
+        else if( rtuAddress != -1 )
+        {
+            return rtuAddress;
+        }
+        else
+        {
+            return super.hashCode();
+        }
     }
 
+    /**
+     * Two addresses are equal if they have the same ip address and the same
+     * rtu address. An address that has neither of them is only equal to
+     * itself.
+     * @param o the object to compare with
+     * @return true if o is a ModbusSlaveAddress equal to this one
+     */
     @Override
     public boolean equals(Object o) 
     {
+        if( o == this )
+        {
+            return true;
+        }
         if(o instanceof ModbusSlaveAddress)
         {
             ModbusSlaveAddress other = (ModbusSlaveAddress)o;
-            return toString().compareTo(other.toString())==0;
+            if( rtuAddress != other.rtuAddress )
+            {
+                return false;
+            }
+            if( ipAddress != null )
+            {
+                return ipAddress.equals(other.ipAddress);
+            }
+            return (other.ipAddress==null) && (rtuAddress!=-1);
         }
         return false;
     }
@@ -11,6 +11,8 @@ package modbuspal.toolkit;
  */
 public class HexaTools
 {
+    private static final char HEXA_DIGITS[] = "0123456789abcdef".toCharArray();
+
     /**
      * Converts the content of the byte buffer into a hexadecimal human-readable
      * string.
@@ -21,12 +23,13 @@ public class HexaTools
      */
     public static String toHexa(byte[] buffer, int offset, int length)
     {
-        String output = "";
+        StringBuilder output = new StringBuilder(2*length);
         for(int i=0;i<length;i++)
         {
-            output += String.format("%02x", buffer[offset+i]);
+            output.append( HEXA_DIGITS[ (buffer[offset+i]>>4) & 0x0F ] );
+            output.append( HEXA_DIGITS[ buffer[offset+i] & 0x0F ] );
         }
-        return output;
+        return output.toString();
     }
 
 
@@ -58,8 +61,13 @@ public class HexaTools
         int nbBytes = ( data.length()+1 ) / 2;
         for( int i=0; i<nbBytes; i++ )
         {
-            byte b = Byte.parseByte( data.substring(i*2, i*2+2), 16 );
-            output[i] = b;
+            int high = Character.digit(data.charAt(i*2), 16);
+            int low = (i*2+1 < data.length()) ? Character.digit(data.charAt(i*2+1), 16) : 0;
+            if( (high<0) || (low<0) )
+            {
+                throw new NumberFormatException("Invalid hexadecimal data: "+data);
+            }
+            output[i] = (byte)( (high<<4) | low );
         }
         return output;
     }
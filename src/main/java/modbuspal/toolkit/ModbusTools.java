@@ -11,6 +11,76 @@ package modbuspal.toolkit;
  */
 public class ModbusTools
 {
+    /**
+     * lookup tables of the MODBUS CRC16 (reflected polynomial 0xA001).
+     * CRC16_TABLES[k][i] is the CRC of the byte i followed by k null bytes,
+     * which allows to process 4 bytes per iteration.
+     */
+    private static final int CRC16_TABLES[][] = makeCRC16Tables();
+
+    private static int[][] makeCRC16Tables()
+    {
+        int tables[][] = new int[4][256];
+        for( int i=0; i<256; i++ )
+        {
+            int crc = i;
+            for( int j=0; j<8; j++ )
+            {
+                if( (crc & 1) == 1 )
+                {
+                    crc = (crc >>> 1) ^ 0xA001;
+                }
+                else
+                {
+                    crc = crc >>> 1;
+                }
+            }
+            tables[0][i] = crc;
+        }
+        for( int k=1; k<4; k++ )
+        {
+            for( int i=0; i<256; i++ )
+            {
+                int crc = tables[k-1][i];
+                tables[k][i] = (crc >>> 8) ^ tables[0][crc & 0xFF];
+            }
+        }
+        return tables;
+    }
+
+    /**
+     * Computes the CRC16 of a MODBUS RTU frame. The bytes are processed
+     * four at a time with lookup tables, instead of bit by bit.
+     * @param buffer buffer containing the frame
+     * @param offset offset of the first byte of the frame (the slave address)
+     * @param length number of bytes to include in the CRC, that is the length
+     * of the frame without the CRC itself
+     * @return the CRC16 of the frame. the low order byte must be transmitted
+     * first.
+     */
+    public static int computeCRC16(byte[] buffer, int offset, int length)
+    {
+        final int t0[] = CRC16_TABLES[0];
+        final int t1[] = CRC16_TABLES[1];
+        final int t2[] = CRC16_TABLES[2];
+        final int t3[] = CRC16_TABLES[3];
+
+        int crc = 0xFFFF;
+        int i = offset;
+        int end = offset + length;
+
+        for( ; i+4<=end; i+=4 )
+        {
+            int x = crc ^ ( (buffer[i] & 0xFF) | ((buffer[i+1] & 0xFF) << 8) );
+            crc = t3[x & 0xFF] ^ t2[(x >>> 8) & 0xFF] ^ t1[buffer[i+2] & 0xFF] ^ t0[buffer[i+3] & 0xFF];
+        }
+        for( ; i<end; i++ )
+        {
+            crc = (crc >>> 8) ^ t0[(crc ^ buffer[i]) & 0xFF];
+        }
+        return crc;
+    }
+
     /**
      * concatenates two bytes to make a 16-bit word, using the MODBUS spec 
      * conventions
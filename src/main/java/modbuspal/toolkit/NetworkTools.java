@@ -7,17 +7,58 @@ package modbuspal.toolkit;
 import java.net.InetAddress;
 import java.net.NetworkInterface;
 import java.net.SocketException;
+import java.util.Collections;
 import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Set;
 
 /**
- *
+ * Network utilities. The addresses of the local network interfaces are
+ * cached, because enumerating the interfaces is slow; the cache is
+ * refreshed when it is older than the refresh interval, or when refresh()
+ * is called.
  * @author JMC15
  */
-public class NetworkTools 
+public class NetworkTools
 {
-    public static boolean isLocalAddress(InetAddress a) 
+    /** name of the system property that defines the refresh interval of
+     * the local addresses, in milliseconds */
+    public static final String REFRESH_INTERVAL_PROPERTY = "modbuspal.network.refresh";
+
+    private static volatile long refreshInterval = Long.getLong(REFRESH_INTERVAL_PROPERTY, 30000);
+    private static volatile Set<InetAddress> localAddresses = null;
+    private static volatile long lastRefresh = 0;
+    private static volatile int generation = 0;
+
+    /**
+     * Defines how often the addresses of the local network interfaces are
+     * enumerated again.
+     * @param ms the refresh interval in milliseconds. If zero or negative,
+     * the addresses are only enumerated again when refresh() is called.
+     */
+    public static void setRefreshInterval(long ms)
+    {
+        refreshInterval = ms;
+    }
+
+    /**
+     * Returns the refresh interval of the local addresses.
+     * @return the refresh interval in milliseconds
+     */
+    public static long getRefreshInterval()
+    {
+        return refreshInterval;
+    }
+
+    /**
+     * Enumerates the addresses of the local network interfaces and updates
+     * the cache.
+     * @throws SocketException
+     */
+    public static synchronized void refresh()
     throws SocketException
     {
+        HashSet<InetAddress> set = new HashSet<InetAddress>();
         Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
         while( interfaces.hasMoreElements() )
         {
@@ -25,13 +66,77 @@ public class NetworkTools
             Enumeration<InetAddress> addresses = itf.getInetAddresses();
             while(addresses.hasMoreElements())
             {
-                InetAddress address = addresses.nextElement();
-                if(a.equals(address)==true)
+                set.add( addresses.nextElement() );
+            }
+        }
+
+        if( set.equals(localAddresses)==false )
+        {
+            localAddresses = Collections.unmodifiableSet(set);
+            generation++;
+        }
+        lastRefresh = System.currentTimeMillis();
+    }
+
+    private static void refreshIfNeeded()
+    throws SocketException
+    {
+        if( localAddresses == null )
+        {
+            synchronized(NetworkTools.class)
+            {
+                if( localAddresses == null )
                 {
-                    return true;
+                    refresh();
                 }
             }
+            return;
         }
-        return false;
+
+        long interval = refreshInterval;
+        if( (interval>0) && (System.currentTimeMillis()-lastRefresh >= interval) )
+        {
+            synchronized(NetworkTools.class)
+            {
+                // another thread may have refreshed the cache in the meantime:
+                if( System.currentTimeMillis()-lastRefresh >= interval )
+                {
+                    refresh();
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the addresses of the local network interfaces.
+     * @return an unmodifiable set of addresses
+     * @throws SocketException
+     */
+    public static Set<InetAddress> getLocalAddresses()
+    throws SocketException
+    {
+        refreshIfNeeded();
+        return localAddresses;
+    }
+
+    /**
+     * Returns a counter that is incremented each time the set of local
+     * addresses changes. Classes that keep information derived from the
+     * local addresses can compare this counter with the value it had when
+     * the information was computed.
+     * @return the generation of the set of local addresses
+     * @throws SocketException
+     */
+    public static int getGeneration()
+    throws SocketException
+    {
+        refreshIfNeeded();
+        return generation;
+    }
+
+    public static boolean isLocalAddress(InetAddress a)
+    throws SocketException
+    {
+        return getLocalAddresses().contains(a);
     }
 }
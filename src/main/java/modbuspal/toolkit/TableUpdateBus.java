@@ -0,0 +1,135 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package modbuspal.toolkit;
+
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.swing.Timer;
+
+/**
+ * Delivers the updates of the table models to the GUI at a bounded frame
+ * rate. The I/O threads and the automations only record what has changed
+ * and post the model on the bus, which is cheap and never blocks; the bus
+ * then asks each posted model to flush its pending changes on the Event
+ * Dispatch Thread. A model that is posted several times between two frames
+ * is flushed only once. A model can also be registered, in order to be
+ * flushed at every frame, when it has to poll its changes (the registers
+ * bound to automations, for example). The frame rate is initialized from
+ * the "modbuspal.gui.fps" system property (25 by default).
+ * @author nnovic
+ */
+public class TableUpdateBus
+{
+    /** name of the system property that defines the frame rate of the bus */
+    public static final String FRAME_RATE_PROPERTY = "modbuspal.gui.fps";
+
+    /**
+     * Implemented by the models that post their updates on the bus.
+     */
+    public interface Source
+    {
+        /**
+         * Fires the events for the changes recorded since the last call.
+         * Always called on the Event Dispatch Thread.
+         */
+        public void flushUpdates();
+    }
+
+    private static final Set<Source> pending = Collections.newSetFromMap( new ConcurrentHashMap<Source,Boolean>() );
+    private static final Set<Source> registered = Collections.newSetFromMap( new ConcurrentHashMap<Source,Boolean>() );
+    private static Timer timer = null;
+
+    /**
+     * Requests the model to be flushed at the next frame. Can be called
+     * from any thread.
+     * @param s the model that has pending changes
+     */
+    public static void post(Source s)
+    {
+        if( pending.add(s) == true )
+        {
+            startTimer();
+        }
+    }
+
+    /**
+     * Requests the model to be flushed at every frame, until unregister()
+     * is called. Can be called from any thread.
+     * @param s the model to flush at every frame
+     */
+    public static void register(Source s)
+    {
+        if( registered.add(s) == true )
+        {
+            startTimer();
+        }
+    }
+
+    /**
+     * Stops flushing the model at every frame. Can be called from any
+     * thread.
+     * @param s the model that was registered
+     */
+    public static void unregister(Source s)
+    {
+        registered.remove(s);
+    }
+
+    private static synchronized void startTimer()
+    {
+        if( timer == null )
+        {
+            int fps = Math.max(1, Integer.getInteger(FRAME_RATE_PROPERTY, 25) );
+            timer = new Timer(1000/fps, new ActionListener()
+            {
+                @Override
+                public void actionPerformed(ActionEvent e)
+                {
+                    flush();
+                }
+            });
+            timer.setCoalesce(true);
+        }
+        if( timer.isRunning() == false )
+        {
+            timer.start();
+        }
+    }
+
+    private static synchronized void stopTimerIfIdle()
+    {
+        if( (pending.isEmpty()==true) && (registered.isEmpty()==true) )
+        {
+            timer.stop();
+        }
+    }
+
+    /**
+     * Flushes all the posted and registered models. Called on the Event
+     * Dispatch Thread.
+     */
+    private static void flush()
+    {
+        Iterator<Source> it = pending.iterator();
+        while( it.hasNext() )
+        {
+            Source s = it.next();
+            it.remove();
+            if( registered.contains(s) == false )
+            {
+                s.flushUpdates();
+            }
+        }
+        for( Source s:registered )
+        {
+            s.flushUpdates();
+        }
+        stopTimerIfIdle();
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package modbuspal.toolkit;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates the threads used by the active components of ModbusPal (tcp/ip
+ * dispatchers, automations, master tasks...). Depending on the execution
+ * mode, the threads are either platform threads or virtual threads. Virtual
+ * threads are only available on Java 21 and later; on older JVMs, platform
+ * threads are always used. The mode is initialized from the
+ * "modbuspal.threads.virtual" system property and can be changed at runtime
+ * with setVirtualThreadsEnabled().
+ * @author nnovic
+ */
+public class ThreadTools
+{
+    /** name of the system property that enables virtual threads. */
+    public static final String VIRTUAL_THREADS_PROPERTY = "modbuspal.threads.virtual";
+
+    private static final Method OF_VIRTUAL = findMethod(Thread.class, "ofVirtual");
+    private static final Method BUILDER_NAME = findMethod("java.lang.Thread$Builder", "name", String.class);
+    private static final Method BUILDER_UNSTARTED = findMethod("java.lang.Thread$Builder", "unstarted", Runnable.class);
+    private static final boolean VIRTUAL_THREADS_SUPPORTED = probeVirtualThreads();
+    private static volatile boolean virtualThreadsEnabled = Boolean.getBoolean(VIRTUAL_THREADS_PROPERTY);
+
+    private static Method findMethod(String className, String name, Class<?>... params)
+    {
+        try
+        {
+            return findMethod( Class.forName(className), name, params );
+        }
+        catch (ClassNotFoundException ex)
+        {
+            return null;
+        }
+    }
+
+    private static Method findMethod(Class<?> c, String name, Class<?>... params)
+    {
+        try
+        {
+            return c.getMethod(name, params);
+        }
+        catch (NoSuchMethodException ex)
+        {
+            return null;
+        }
+    }
+
+    private static boolean probeVirtualThreads()
+    {
+        if( (OF_VIRTUAL==null) || (BUILDER_NAME==null) || (BUILDER_UNSTARTED==null) )
+        {
+            return false;
+        }
+
+        // on Java 19 and 20, virtual threads are a preview feature and
+        // ofVirtual() fails unless --enable-preview is set.
+        try
+        {
+            Object builder = OF_VIRTUAL.invoke(null);
+            BUILDER_UNSTARTED.invoke(builder, new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                }
+            });
+            return true;
+        }
+        catch (Exception ex)
+        {
+            return false;
+        }
+    }
+
+    /**
+     * Checks if the running JVM is able to create virtual threads.
+     * @return true if virtual threads are supported
+     */
+    public static boolean isVirtualThreadsSupported()
+    {
+        return VIRTUAL_THREADS_SUPPORTED;
+    }
+
+    /**
+     * Enables or disables the use of virtual threads. Only the threads
+     * created after this call are affected. If the JVM does not support
+     * virtual threads, platform threads are used anyway.
+     * @param enabled true to create virtual threads, false to create
+     * platform threads.
+     */
+    public static void setVirtualThreadsEnabled(boolean enabled)
+    {
+        if( (enabled==true) && (VIRTUAL_THREADS_SUPPORTED==false) )
+        {
+            System.out.println("Virtual threads are not supported by this JVM, platform threads will be used");
+        }
+        virtualThreadsEnabled = enabled;
+    }
+
+    /**
+     * Checks if the new threads will be virtual threads.
+     * @return true if virtual threads are enabled and supported.
+     */
+    public static boolean isVirtualThreadsEnabled()
+    {
+        return (virtualThreadsEnabled==true) && (VIRTUAL_THREADS_SUPPORTED==true);
+    }
+
+    /**
+     * Creates a new thread, but does not start it. The thread is a virtual
+     * thread if isVirtualThreadsEnabled() returns true, otherwise it is a
+     * platform thread.
+     * @param r the code to execute in the thread
+     * @param name the name of the thread
+     * @return the new, unstarted, thread
+     */
+    public static Thread newThread(Runnable r, String name)
+    {
+        if( isVirtualThreadsEnabled()==true )
+        {
+            try
+            {
+                Object builder = OF_VIRTUAL.invoke(null);
+                builder = BUILDER_NAME.invoke(builder, name);
+                return (Thread)BUILDER_UNSTARTED.invoke(builder, r);
+            }
+            catch (Exception ex)
+            {
+                System.err.println("Cannot create virtual thread: "+ex.getMessage());
+            }
+        }
+        return new Thread(r, name);
+    }
+
+    /**
+     * Creates and starts a new thread.
+     * @see #newThread(java.lang.Runnable, java.lang.String)
+     * @param r the code to execute in the thread
+     * @param name the name of the thread
+     * @return the thread, already started
+     */
+    public static Thread start(Runnable r, String name)
+    {
+        Thread t = newThread(r, name);
+        t.start();
+        return t;
+    }
+
+    /**
+     * Creates a ThreadFactory that uses newThread() to create its threads.
+     * Platform threads created by this factory are daemon threads.
+     * @param name the name given to the threads
+     * @return a new ThreadFactory
+     */
+    public static ThreadFactory newThreadFactory(final String name)
+    {
+        return new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                Thread t = ThreadTools.newThread(r, name);
+                if( t.isDaemon()==false )
+                {
+                    t.setDaemon(true);
+                }
+                return t;
+            }
+        };
+    }
+
+    /**
+     * Creates an executor that runs each task in its own thread, as
+     * created by newThreadFactory(). With virtual threads, this is the
+     * recommended way of running many blocking tasks; with platform threads,
+     * idle threads are reused.
+     * @param name the name given to the threads
+     * @return a new ExecutorService
+     */
+    public static ExecutorService newExecutor(String name)
+    {
+        return Executors.newCachedThreadPool( newThreadFactory(name) );
+    }
+}
@@ -30,6 +30,7 @@ implements ActionListener
     public static final String SLAVE_EXT = "xmps";
     public static final String AUTOMATION_EXT = "xmpa";
     public static final String RECORDER_EXT = "xmpr";
+    public static final String JOURNAL_EXT = "xmpj";
 
     private static final String REG_KEYS[] =   {"project_file", "slave_file",        "automation_file",        "recorder_file"};
     private static final String PROF_TYPES[] = {"Project file", "Slave export file", "Automation export file", "Recorder file"};
@@ -37,6 +38,7 @@ implements ActionListener
 
     private Preferences preferences;
     private int selectedProfile;
+    private FileNameExtensionFilter journalFilter = null;
 
     public XFileChooser(int profile)
     {
@@ -46,6 +48,13 @@ implements ActionListener
         FileNameExtensionFilter filter = new FileNameExtensionFilter(PROF_TYPES[selectedProfile], PROF_EXT[selectedProfile]);
         setFileFilter(filter);
 
+        // a recording can also be a binary journal:
+        if( selectedProfile == RECORDER_FILE )
+        {
+            journalFilter = new FileNameExtensionFilter("Binary journal", JOURNAL_EXT);
+            addChoosableFileFilter(journalFilter);
+        }
+
         // retrieve directory from preferences
         Preferences prefs = Preferences.userRoot();
         preferences = prefs.node(MODBUSPAL_REG_PATH);
@@ -70,6 +79,14 @@ implements ActionListener
         if( file!=null )
         {
             String path = file.getPath();
+            if( (journalFilter!=null) && (path.endsWith(JOURNAL_EXT)==true) )
+            {
+                return file;
+            }
+            if( (journalFilter!=null) && (getFileFilter()==journalFilter) )
+            {
+                return new File( path+"."+JOURNAL_EXT);
+            }
             if( path.endsWith(PROF_EXT[selectedProfile])==false )
             {
                 return new File( path+"."+PROF_EXT[selectedProfile]);
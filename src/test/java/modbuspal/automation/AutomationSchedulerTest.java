@@ -0,0 +1,139 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package modbuspal.automation;
+
+import java.util.ArrayList;
+import java.util.Random;
+import junit.framework.TestCase;
+
+/**
+ * Drives the timing wheel of AutomationScheduler without its thread, and
+ * checks that the timers expire at their deadline and in order, including
+ * across the boundaries of the levels of the wheel.
+ * @author nnovic
+ */
+public class AutomationSchedulerTest
+extends TestCase
+{
+    private static final Runnable NOTHING = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+        }
+    };
+
+    private static AutomationScheduler.Timeout timer(long ms)
+    {
+        return new AutomationScheduler.Timeout(NOTHING, AutomationScheduler.ORIGIN + ms*1000000L);
+    }
+
+    /**
+     * Advances the wheel from event to event, up to the specified tick,
+     * and checks each timer that expires.
+     * @return the number of expired timers
+     */
+    private static int runUntil(AutomationScheduler s, long until)
+    {
+        int count = 0;
+        long lastTick = -1;
+        while( true )
+        {
+            long next = s.nextEventTick();
+            if( (next<0) || (next>until) )
+            {
+                s.advance(until);
+                break;
+            }
+            s.advance(next);
+            for( AutomationScheduler.Timeout t : s.expired )
+            {
+                assertTrue( "timer of "+t.tick+" ms expired early, at "+next, next >= t.tick );
+                assertEquals( "timer of "+t.tick+" ms expired late", t.tick, next );
+                assertTrue( "timer of "+t.tick+" ms out of order", t.tick >= lastTick );
+                lastTick = t.tick;
+                count++;
+            }
+            s.expired.clear();
+        }
+        return count;
+    }
+
+    public void testLevelBoundaries()
+    {
+        long deadlines[] = {
+            1, 62, 63, 64, 65, 127, 128,
+            4094, 4095, 4096, 4097, 8191, 8192,
+            262143, 262144, 262145,
+            (1L<<24)-1, 1L<<24, (1L<<24)+1, 3*(1L<<24)+12345 };
+
+        AutomationScheduler s = new AutomationScheduler();
+        for( int i=deadlines.length-1; i>=0; i-- )
+        {
+            s.insert( timer(deadlines[i]) );
+        }
+        assertEquals( deadlines.length, runUntil(s, 4*(1L<<24)) );
+        assertEquals( -1, s.nextEventTick() );
+    }
+
+    public void testBoundariesFromAnOffset()
+    {
+        // same boundaries, relative to a current time that is not aligned
+        // on any level:
+        AutomationScheduler s = new AutomationScheduler();
+        long start = 70000 + 4095 + 63;
+        s.advance(start);
+
+        long offsets[] = { 0, 1, 63, 64, 4095, 4096, 262144, 1L<<24, (1L<<24)+100 };
+        for( long offset : offsets )
+        {
+            s.insert( timer(start+offset) );
+        }
+
+        // a deadline in the past expires at once:
+        s.insert( timer(start-10) );
+        assertEquals( 2, s.expired.size() );
+        s.expired.clear();
+
+        assertEquals( offsets.length-1, runUntil(s, start+(1L<<25)) );
+    }
+
+    public void testRandomTimers()
+    {
+        Random random = new Random(7);
+        AutomationScheduler s = new AutomationScheduler();
+        int expected = 0;
+        int expired = 0;
+        long now = 0;
+        for( int round=0; round<50; round++ )
+        {
+            for( int i=0; i<100; i++ )
+            {
+                long delta = random.nextBoolean() ? random.nextInt(5000) : (long)random.nextInt(1<<26);
+                s.insert( timer(now + 1 + delta) );
+                expected++;
+            }
+            now += random.nextInt(1<<22);
+            expired += runUntil(s, now);
+        }
+        expired += runUntil(s, now + (1L<<27));
+        assertEquals(expected, expired);
+    }
+
+    public void testCancelledTimer()
+    {
+        AutomationScheduler s = new AutomationScheduler();
+        AutomationScheduler.Timeout t = timer(100);
+        s.insert(t);
+        s.insert( timer(200) );
+        t.cancel();
+        s.advance(150);
+        // the cancelled timer is dropped when its slot is processed:
+        assertEquals( 0, s.expired.size() );
+        s.advance(250);
+        assertEquals( 1, s.expired.size() );
+    }
+}
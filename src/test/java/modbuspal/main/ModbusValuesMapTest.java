@@ -0,0 +1,148 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package modbuspal.main;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import junit.framework.TestCase;
+
+/**
+ * Checks the translation between order and index of ModbusValuesMap against
+ * a TreeMap, after random insertions and deletions.
+ * @author nnovic
+ */
+public class ModbusValuesMapTest
+extends TestCase
+{
+    private static void check(ModbusValuesMap map, TreeMap<Integer,Integer> expected)
+    {
+        assertEquals(expected.size(), map.getCount());
+
+        int order = 0;
+        for( Map.Entry<Integer,Integer> e : expected.entrySet() )
+        {
+            int index = e.getKey();
+            assertTrue( map.indexExists(index) );
+            assertEquals( "order of "+index, order, map.getOrderOf(index) );
+            assertEquals( "index at order "+order, index, map.getIndexOf(order) );
+            assertEquals( "value of "+index, (int)e.getValue(), map.getByIndex(index) );
+            order++;
+        }
+    }
+
+    private static void randomOperations(ModbusValuesMap map, int maxValue, long seed)
+    {
+        Random random = new Random(seed);
+        TreeMap<Integer,Integer> expected = new TreeMap<Integer,Integer>();
+
+        for( int round=0; round<400; round++ )
+        {
+            int op = random.nextInt(4);
+            int index = random.nextInt(65536);
+
+            // make ranges cross page and word boundaries often:
+            int quantity = 1 + random.nextInt( random.nextBoolean() ? 70 : 600 );
+            quantity = Math.min(quantity, 65536-index);
+
+            switch(op)
+            {
+                case 0:
+                {
+                    int value = random.nextInt(maxValue+1);
+                    map.addIndex(index);
+                    map.putByIndex(index, value);
+                    expected.put(index, value);
+                    break;
+                }
+                case 1:
+                {
+                    map.addIndexes(index, quantity);
+                    for( int i=index; i<index+quantity; i++ )
+                    {
+                        if( expected.containsKey(i)==false )
+                        {
+                            expected.put(i, 0);
+                        }
+                    }
+                    break;
+                }
+                case 2:
+                {
+                    // delete an existing register, if any:
+                    Integer key = expected.ceilingKey(index);
+                    if( key != null )
+                    {
+                        map.delete(key);
+                        expected.remove(key);
+                    }
+                    break;
+                }
+                default:
+                {
+                    map.deleteIndexes(index, quantity);
+                    expected.subMap(index, index+quantity).clear();
+                    break;
+                }
+            }
+
+            if( (round % 20) == 0 )
+            {
+                check(map, expected);
+            }
+        }
+        check(map, expected);
+
+        // remove everything, in a random order:
+        ArrayList<Integer> keys = new ArrayList<Integer>( expected.keySet() );
+        while( keys.isEmpty()==false )
+        {
+            int key = keys.remove( random.nextInt(keys.size()) );
+            map.delete(key);
+            expected.remove(key);
+            if( (keys.size() % 97) == 0 )
+            {
+                check(map, expected);
+            }
+        }
+        assertEquals(0, map.getCount());
+    }
+
+    public void testRankAndSelectOfRegisters()
+    {
+        for( long seed=1; seed<=5; seed++ )
+        {
+            randomOperations( new ModbusValuesMap(), 65535, seed );
+        }
+    }
+
+    public void testRankAndSelectOfCoils()
+    {
+        for( long seed=1; seed<=5; seed++ )
+        {
+            randomOperations( new ModbusCoilsMap(), 1, seed );
+        }
+    }
+
+    public void testPageBoundaries()
+    {
+        ModbusValuesMap map = new ModbusValuesMap();
+        TreeMap<Integer,Integer> expected = new TreeMap<Integer,Integer>();
+        int indexes[] = { 0, 63, 64, 255, 256, 511, 65279, 65280, 65535 };
+        for( int index : indexes )
+        {
+            map.addIndex(index);
+            map.putByIndex(index, index & 0xFFFF);
+            expected.put(index, index & 0xFFFF);
+        }
+        check(map, expected);
+
+        map.deleteIndexes(63, 194);
+        expected.subMap(63, 257).clear();
+        check(map, expected);
+    }
+}